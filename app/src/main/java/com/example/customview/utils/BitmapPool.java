@@ -0,0 +1,222 @@
+package com.example.customview.utils;
+
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Bitmap复用池
+ *
+ * 从LruCache中淘汰的、不再被imageView显示的bitmap放到这里，解码时通过BitmapFactory.Options.inBitmap复用它们的内存，
+ * 减少滚动时的内存分配和GC。
+ * 按config分组，组内按字节数排序：KitKat及以上只要字节数足够就可以复用（最多浪费MAX_SIZE_MULTIPLE倍），
+ * KitKat以下要求宽高和config完全一致。
+ * 超出maxSize时按放入的先后顺序淘汰。放入、取出和淘汰都不需要遍历整个池。
+ *
+ * date: 2018/9/7
+ * user: jackxu
+ */
+public class BitmapPool {
+
+    // 复用的bitmap最多比需要的大这么多倍，避免小图长期占着大块内存
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mGroups = new HashMap<>();
+    // bitmap -> 放入时的字节数，按放入的顺序迭代，最早放入的在最前面；Bitmap没有重写equals/hashCode，按对象比较
+    private final LinkedHashMap<Bitmap, Integer> mLruBitmaps = new LinkedHashMap<>();
+    private int mMaxSize;
+    private int mCurrentSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 放入一个不再使用的bitmap，不可复用的bitmap直接回收
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = getBitmapByteSize(bitmap);
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+        if (mLruBitmaps.containsKey(bitmap)) {
+            return;
+        }
+        getGroup(bitmap.getConfig(), size, true).addLast(bitmap);
+        mLruBitmaps.put(bitmap, size);
+        mCurrentSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * 取出一个可以作为inBitmap解码出width x height的bitmap，没有则返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mGroups.get(config);
+        int needSize = width * height * getBytesPerPixel(config);
+        Bitmap result = null;
+        if (sizes != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                Integer size = sizes.ceilingKey(needSize);
+                if (size != null && size <= needSize * MAX_SIZE_MULTIPLE) {
+                    result = sizes.get(size).peekLast();
+                }
+            } else {
+                search:
+                for (LinkedList<Bitmap> group : sizes.values()) {
+                    for (Bitmap bitmap : group) {
+                        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                            result = bitmap;
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        remove(result);
+        mHitCount++;
+        return result;
+    }
+
+    /**
+     * 淘汰最早放入的bitmap直到总大小不超过maxSize
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mCurrentSize > maxSize && !mLruBitmaps.isEmpty()) {
+            Bitmap bitmap = mLruBitmaps.keySet().iterator().next();
+            remove(bitmap);
+            bitmap.recycle();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int size() {
+        return mCurrentSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mCurrentSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",hitRate=" + hitPercent + "%,puts=" + mPutCount
+                + ",evictions=" + mEvictionCount + "]";
+    }
+
+    private void remove(Bitmap bitmap) {
+        int size = mLruBitmaps.remove(bitmap);
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mGroups.get(bitmap.getConfig());
+        LinkedList<Bitmap> group = getGroup(bitmap.getConfig(), size, false);
+        if (group != null) {
+            // 组内也按放入的顺序排列：淘汰的是组里最早放入的，取出的是组里最后放入的，都在两端
+            if (group.peekFirst() == bitmap) {
+                group.removeFirst();
+            } else if (group.peekLast() == bitmap) {
+                group.removeLast();
+            } else {
+                removeIdentity(group, bitmap);
+            }
+            if (group.isEmpty()) {
+                sizes.remove(size);
+            }
+        }
+        mCurrentSize -= size;
+    }
+
+    private static void removeIdentity(LinkedList<Bitmap> group, Bitmap bitmap) {
+        Iterator<Bitmap> iterator = group.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == bitmap) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private LinkedList<Bitmap> getGroup(Bitmap.Config config, int size, boolean create) {
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mGroups.get(config);
+        if (sizes == null) {
+            if (!create) {
+                return null;
+            }
+            sizes = new TreeMap<>();
+            mGroups.put(config, sizes);
+        }
+        LinkedList<Bitmap> group = sizes.get(size);
+        if (group == null && create) {
+            group = new LinkedList<>();
+            sizes.put(size, group);
+        }
+        return group;
+    }
+
+    /**
+     * bitmap实际占用的内存，KitKat及以上复用后的bitmap可能比getByteCount大
+     */
+    public static int getBitmapByteSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    @SuppressWarnings("deprecation")  // ARGB_4444在KitKat中废弃，旧的bitmap仍然可能使用
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.customview.utils;
+
+
+/**
+ * 各级缓存分别的命中次数：bitmap内存缓存、编码后字节的内存缓存、硬盘缓存。
+ * 每一级只统计走到这一级的请求，例如硬盘缓存的次数不包括在内存中已经命中的请求。
+ * 找到了但已经过期、需要去网络重新验证的条目单独计数，不算命中
+ *
+ * date: 2018/9/20
+ * user: jackxu
+ */
+public class CacheStats {
+
+    public static final int TIER_MEMORY = 0;  // 解码后的bitmap
+    public static final int TIER_ENCODED = 1;  // 编码后的图片字节，没有开启时不统计
+    public static final int TIER_DISK = 2;
+    private static final int TIER_COUNT = 3;
+    private static final String[] TIER_NAMES = {"memory", "encoded", "disk"};
+
+    private final int[] mHitCounts = new int[TIER_COUNT];
+    private final int[] mMissCounts = new int[TIER_COUNT];
+    private final int[] mStaleCounts = new int[TIER_COUNT];
+
+    synchronized void hit(int tier) {
+        mHitCounts[tier]++;
+    }
+
+    synchronized void miss(int tier) {
+        mMissCounts[tier]++;
+    }
+
+    synchronized void stale(int tier) {
+        mStaleCounts[tier]++;
+    }
+
+    public synchronized int hitCount(int tier) {
+        return mHitCounts[tier];
+    }
+
+    public synchronized int missCount(int tier) {
+        return mMissCounts[tier];
+    }
+
+    /**
+     * 找到了但已经过期的次数，这些请求还要去网络重新验证
+     */
+    public synchronized int staleCount(int tier) {
+        return mStaleCounts[tier];
+    }
+
+    /**
+     * 命中率，0到1之间，过期的条目不算命中；还没有请求走到这一级时为0
+     */
+    public synchronized float hitRate(int tier) {
+        int accesses = accessCount(tier);
+        return accesses != 0 ? (float) mHitCounts[tier] / accesses : 0f;
+    }
+
+    private int accessCount(int tier) {
+        return mHitCounts[tier] + mMissCounts[tier] + mStaleCounts[tier];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("CacheStats[");
+        for (int i = 0; i < TIER_COUNT; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(TIER_NAMES[i]).append("=").append(mHitCounts[i]).append('/')
+                    .append(accessCount(i)).append('(')
+                    .append((int) (hitRate(i) * 100)).append("%,stale=").append(mStaleCounts[i]).append(')');
+        }
+        return sb.append(']').toString();
+    }
+}
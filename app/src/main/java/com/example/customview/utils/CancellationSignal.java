@@ -0,0 +1,53 @@
+package com.example.customview.utils;
+
+
+/**
+ * 取消信号，用于中断正在进行的下载和解码
+ * android.os.CancellationSignal 需要 API 16，这里自己实现一个简单的版本
+ *
+ * date: 2018/9/6
+ * user: jackxu
+ */
+public class CancellationSignal {
+
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+    private boolean isCanceled;
+    private OnCancelListener mOnCancelListener;
+
+    public synchronized boolean isCanceled() {
+        return isCanceled;
+    }
+
+    /**
+     * 取消，已设置的监听会被立即回调
+     */
+    public void cancel() {
+        OnCancelListener listener;
+        synchronized (this) {
+            if (isCanceled) {
+                return;
+            }
+            isCanceled = true;
+            listener = mOnCancelListener;
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * 设置取消监听，传null清除；如果已经取消，监听会被立即回调
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            mOnCancelListener = listener;
+            if (!isCanceled || listener == null) {
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+}
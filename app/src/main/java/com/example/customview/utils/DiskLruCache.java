@@ -0,0 +1,744 @@
+package com.example.customview.utils;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+
+/**
+ * 有容量上限的硬盘缓存
+ *
+ * 每个条目对应目录下的 valueCount 个文件（key.0, key.1 ...），所有的增删读操作都追加写入 journal 文件：
+ *     DIRTY key        开始编辑，文件还没写完
+ *     CLEAN key len..  编辑提交成功，后面跟着每个文件的长度
+ *     REMOVE key       条目被删除
+ *     READ key         条目被读取，用于维护 LRU 顺序
+ * 打开缓存时回放 journal 得到内存索引（lruEntries），之后的查找只查索引，不再去 stat 文件。
+ * 总大小超过 maxSize 时按 LRU 顺序淘汰；journal 冗余操作过多时在后台重建。
+ * 进程崩溃后残留的 DIRTY 条目、半截的 journal 都会在下次 open 时被清理掉。
+ *
+ * date: 2018/9/3
+ * user: jackxu
+ */
+public final class DiskLruCache implements Closeable {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String MAGIC = "com.example.customview.DiskLruCache";
+    static final String VERSION_1 = "1";
+    static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // journal 中的冗余操作超过这个数（并且超过条目数）时重建 journal
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+    private final int appVersion;
+    private final int valueCount;
+    private long maxSize;
+    private long size = 0;
+    private Writer journalWriter;
+    private int redundantOpCount;
+
+    // accessOrder = true，迭代顺序就是 LRU 顺序
+    private final LinkedHashMap<String, Entry> lruEntries =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    // 每次提交递增，用来判断 Snapshot 是否过期；从 1 开始，回放 journal 得到的条目是 0
+    private long nextSequenceNumber = 1;
+
+    // 淘汰和重建 journal 放在单独的后台线程里做
+    private final ThreadPoolExecutor executorService =
+            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final Callable<Void> cleanupCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    return null;  // 已经关闭
+                }
+                trimToSize();
+                if (journalRebuildRequired()) {
+                    rebuildJournal();
+                    redundantOpCount = 0;
+                }
+            }
+            return null;
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.valueCount = valueCount;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 打开 directory 下的缓存，不存在则新建
+     *
+     * @param directory  缓存目录，需要独占
+     * @param appVersion 版本号变化时整个缓存会被清空
+     * @param valueCount 每个条目对应的文件数
+     * @param maxSize    缓存的最大字节数
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+
+        // 上次重建 journal 时崩溃：只剩 backup 就用 backup，两个都在就丢掉 backup
+        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
+        if (backupFile.exists()) {
+            File journalFile = new File(directory, JOURNAL_FILE);
+            if (journalFile.exists()) {
+                backupFile.delete();
+            } else {
+                renameTo(backupFile, journalFile, false);
+            }
+        }
+
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        if (cache.journalFile.exists()) {
+            try {
+                boolean truncated = cache.readJournal();
+                cache.processJournal();
+                if (truncated) {
+                    // 最后一行没写完就崩溃了，丢掉这一行，用内存索引重写 journal
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = new BufferedWriter(
+                            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), US_ASCII));
+                }
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                // journal 损坏，整个缓存清空重建
+                journalIsCorrupt.printStackTrace();
+                cache.delete();
+            }
+        }
+
+        // 新建一个空缓存
+        directory.mkdirs();
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * 回放 journal
+     *
+     * @return journal 最后一行是否不完整
+     */
+    private boolean readJournal() throws IOException {
+        boolean truncated = !endsWithNewLine(journalFile);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journalFile), US_ASCII));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String appVersionString = reader.readLine();
+            String valueCountString = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic)
+                    || !VERSION_1.equals(version)
+                    || !Integer.toString(appVersion).equals(appVersionString)
+                    || !Integer.toString(valueCount).equals(valueCountString)
+                    || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+                        + valueCountString + ", " + blank + "]");
+            }
+
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && truncated) {
+                    break;
+                }
+                readJournalLine(line);
+                lineCount++;
+                line = next;
+            }
+            redundantOpCount = lineCount - lruEntries.size();
+        } finally {
+            closeQuietly(reader);
+        }
+        return truncated;
+    }
+
+    private static boolean endsWithNewLine(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                return false;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        int firstSpace = line.indexOf(' ');
+        if (firstSpace == -1) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        int keyBegin = firstSpace + 1;
+        int secondSpace = line.indexOf(' ', keyBegin);
+        final String key;
+        if (secondSpace == -1) {
+            key = line.substring(keyBegin);
+            if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
+                lruEntries.remove(key);
+                return;
+            }
+        } else {
+            key = line.substring(keyBegin, secondSpace);
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
+            String[] parts = line.substring(secondSpace + 1).split(" ");
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.setLengths(parts);
+        } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
+            entry.currentEditor = new Editor(entry);
+        } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
+            // READ 只影响 LRU 顺序，上面的 get 已经处理了
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * 统计总大小，并清理掉没有提交完成的条目
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.currentEditor == null) {
+                for (int t = 0; t < valueCount; t++) {
+                    size += entry.lengths[t];
+                }
+            } else {
+                entry.currentEditor = null;
+                for (int t = 0; t < valueCount; t++) {
+                    deleteIfExists(entry.getCleanFile(t));
+                    deleteIfExists(entry.getDirtyFile(t));
+                }
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * 用内存索引重写一份精简的 journal，替换掉当前的 journal
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(journalFileTmp), US_ASCII));
+        try {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write(Integer.toString(appVersion));
+            writer.write("\n");
+            writer.write(Integer.toString(valueCount));
+            writer.write("\n");
+            writer.write("\n");
+
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else {
+                    writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (journalFile.exists()) {
+            renameTo(journalFile, journalFileBackup, true);
+        }
+        renameTo(journalFileTmp, journalFile, false);
+        journalFileBackup.delete();
+
+        journalWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(journalFile, true), US_ASCII));
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException();
+        }
+    }
+
+    private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
+        if (deleteDestination) {
+            deleteIfExists(to);
+        }
+        if (!from.renameTo(to)) {
+            throw new IOException();
+        }
+    }
+
+    /**
+     * 根据 key 取出缓存条目，不存在或者还没有写完时返回 null
+     * 只查内存索引，不访问文件系统
+     */
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+
+        redundantOpCount++;
+        journalWriter.append(READ + ' ' + key + '\n');
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+
+        File[] files = new File[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            files[i] = entry.getCleanFile(i);
+        }
+        return new Snapshot(entry, entry.sequenceNumber, files, entry.lengths.clone());
+    }
+
+    /**
+     * 开始编辑 key 对应的条目，同一个 key 正在被编辑时返回 null
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, -1);
+    }
+
+    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (expectedSequenceNumber != -1
+                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+            return null;  // Snapshot 已经过期
+        }
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        } else if (entry.currentEditor != null) {
+            return null;  // 另一个编辑正在进行
+        }
+
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+
+        // 先把 DIRTY 刷到磁盘，防止文件泄漏
+        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.flush();
+        return editor;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 修改缓存上限，超出部分会在后台淘汰
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        executorService.submit(cleanupCallable);
+    }
+
+    /**
+     * 当前缓存占用的字节数，可能暂时超过 maxSize，后台淘汰完成后回落
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+
+        // 第一次创建条目时每个文件都必须写入
+        if (success && !entry.readable) {
+            for (int i = 0; i < valueCount; i++) {
+                if (!editor.written[i]) {
+                    editor.abort();
+                    throw new IllegalStateException("Newly created entry didn't create value for index " + i);
+                }
+                if (!entry.getDirtyFile(i).exists()) {
+                    editor.abort();
+                    return;
+                }
+            }
+        }
+
+        for (int i = 0; i < valueCount; i++) {
+            File dirty = entry.getDirtyFile(i);
+            if (success) {
+                if (dirty.exists()) {
+                    File clean = entry.getCleanFile(i);
+                    dirty.renameTo(clean);
+                    long oldLength = entry.lengths[i];
+                    long newLength = clean.length();
+                    entry.lengths[i] = newLength;
+                    size = size - oldLength + newLength;
+                }
+            } else {
+                deleteIfExists(dirty);
+            }
+        }
+
+        redundantOpCount++;
+        entry.currentEditor = null;
+        if (entry.readable | success) {
+            entry.readable = true;
+            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            if (success) {
+                entry.sequenceNumber = nextSequenceNumber++;
+            }
+        } else {
+            lruEntries.remove(entry.key);
+            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        }
+        journalWriter.flush();
+
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    private boolean journalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= lruEntries.size();
+    }
+
+    /**
+     * 删除 key 对应的条目，正在编辑的条目不能删除
+     *
+     * @return 是否删除成功
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+
+        for (int i = 0; i < valueCount; i++) {
+            File file = entry.getCleanFile(i);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+            size -= entry.lengths[i];
+            entry.lengths[i] = 0;
+        }
+
+        redundantOpCount++;
+        journalWriter.append(REMOVE + ' ' + key + '\n');
+        lruEntries.remove(key);
+        entry.readable = false;  // 之前的Snapshot不再有效
+
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return journalWriter == null;
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        journalWriter.flush();
+    }
+
+    /**
+     * 关闭缓存，正在进行的编辑会被丢弃
+     */
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize();
+        journalWriter.close();
+        journalWriter = null;
+    }
+
+    private void trimToSize() throws IOException {
+        while (size > maxSize) {
+            Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
+            remove(toEvict.getKey());
+        }
+    }
+
+    /**
+     * 关闭缓存并删除目录下所有文件
+     */
+    public void delete() throws IOException {
+        close();
+        deleteContents(directory);
+    }
+
+    private static void deleteContents(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            if (!file.delete()) {
+                throw new IOException("failed to delete file: " + file);
+            }
+        }
+    }
+
+    private void validateKey(String key) {
+        if (!LEGAL_KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("keys must match regex [a-z0-9_-]{1,120}: \"" + key + "\"");
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 条目某一时刻的快照
+     *
+     * 只记录文件的路径，不打开文件：条目之后被淘汰或者重新提交时文件会被删除或者替换，
+     * 读取失败时用 isCurrent 区分是文件损坏还是快照已经过期
+     */
+    public final class Snapshot {
+        private final Entry entry;
+        private final long sequenceNumber;
+        private final File[] files;
+        private final long[] lengths;
+
+        private Snapshot(Entry entry, long sequenceNumber, File[] files, long[] lengths) {
+            this.entry = entry;
+            this.sequenceNumber = sequenceNumber;
+            this.files = files;
+            this.lengths = lengths;
+        }
+
+        /**
+         * 基于这个快照开始编辑，快照过期（条目已被修改）时返回 null
+         */
+        public Editor edit() throws IOException {
+            return DiskLruCache.this.edit(entry.key, sequenceNumber);
+        }
+
+        /**
+         * 条目是否还和快照时一样；被淘汰、删除或者重新提交之后返回 false，getFile 返回的文件可能已经不在了。
+         * 不访问文件系统，也不影响 LRU 顺序
+         */
+        public boolean isCurrent() {
+            synchronized (DiskLruCache.this) {
+                return entry.readable && entry.sequenceNumber == sequenceNumber;
+            }
+        }
+
+        public File getFile(int index) {
+            return files[index];
+        }
+
+        public long getLength(int index) {
+            return lengths[index];
+        }
+    }
+
+    /**
+     * 编辑某个条目，文件先写到 key.i.tmp，commit 时再 rename 成正式文件
+     */
+    public final class Editor {
+        private final Entry entry;
+        private final boolean[] written;
+        private boolean done;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+            this.written = (entry.readable) ? null : new boolean[valueCount];
+        }
+
+        /**
+         * 返回 index 对应的临时文件，调用方直接往里写
+         */
+        public File getFile(int index) {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!entry.readable) {
+                    written[index] = true;
+                }
+                return entry.getDirtyFile(index);
+            }
+        }
+
+        /**
+         * 提交编辑，之后 get 就能读到
+         */
+        public void commit() throws IOException {
+            completeEdit(this, true);
+            done = true;
+        }
+
+        /**
+         * 放弃编辑，删除临时文件
+         */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+            done = true;
+        }
+
+        /**
+         * 还没有 commit 或 abort 时 abort，用在 finally 中
+         */
+        public void abortUnlessCommitted() {
+            if (!done) {
+                try {
+                    abort();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private final class Entry {
+        private final String key;
+
+        // 每个文件的长度
+        private final long[] lengths;
+
+        // 提交过一次之后才可读
+        private boolean readable;
+
+        // 正在进行的编辑，没有则为 null
+        private Editor currentEditor;
+
+        // 最近一次提交的序号
+        private long sequenceNumber;
+
+        private Entry(String key) {
+            this.key = key;
+            this.lengths = new long[valueCount];
+        }
+
+        public String getLengths() {
+            StringBuilder result = new StringBuilder();
+            for (long size : lengths) {
+                result.append(' ').append(size);
+            }
+            return result.toString();
+        }
+
+        private void setLengths(String[] strings) throws IOException {
+            if (strings.length != valueCount) {
+                throw invalidLengths(strings);
+            }
+            try {
+                for (int i = 0; i < strings.length; i++) {
+                    lengths[i] = Long.parseLong(strings[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw invalidLengths(strings);
+            }
+        }
+
+        private IOException invalidLengths(String[] strings) {
+            return new IOException("unexpected journal line: " + Arrays.toString(strings));
+        }
+
+        public File getCleanFile(int i) {
+            return new File(directory, key + "." + i);
+        }
+
+        public File getDirtyFile(int i) {
+            return new File(directory, key + "." + i + ".tmp");
+        }
+    }
+}
@@ -7,12 +7,14 @@ import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.zip.GZIPInputStream;
 
 
 /**
@@ -22,60 +24,312 @@ import java.net.URL;
  */
 public class DownloadImgUtils {
 
+    // 读取图片头部时最多缓存的字节数；BufferedInputStream只会缓存真正读过的部分，
+    // 一般的图片头部只有几K，带大块EXIF的JPEG也不会超过这个值
+    private static final int HEADER_MARK_LIMIT = 1024 * 1024;
+
+    private static final int TRANSFER_BUFFER_SIZE = 16 * 1024;
+
+    // 不再需要的响应体最多再读这么多字节，读到末尾连接才会回到连接池；剩下的更多时直接断开
+    private static final int MAX_DRAIN_BYTES = 256 * 1024;
+
+    // 每个线程复用一块传输缓冲区，避免每次下载都分配
+    private static final ThreadLocal<byte[]> sTransferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * 当前线程复用的传输缓冲区，也可以作为BitmapFactory.Options.inTempStorage
+     */
+    static byte[] getTransferBuffer() {
+        return sTransferBuffer.get();
+    }
+
+    /**
+     * 打开连接：声明支持gzip，有缓存信息时做条件请求。
+     * 连接用完后只关闭流、不disconnect，底层的socket才能被keep-alive复用
+     */
+    private static HttpURLConnection openConnection(String urlStr, CacheHeaders validators)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        if (validators != null) {
+            validators.applyTo(conn);
+        }
+        return conn;
+    }
+
+    /**
+     * 响应体，服务器使用了gzip时解压；手动设置Accept-Encoding后HttpURLConnection不会自动解压
+     *
+     * @param metrics 不为null时统计实际传输的字节数
+     */
+    private static InputStream getResponseStream(HttpURLConnection conn, RequestMetrics metrics)
+            throws IOException {
+        InputStream is = conn.getInputStream();
+        if (metrics != null) {
+            is = new CountingInputStream(is, metrics);
+        }
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            return new GZIPInputStream(is, TRANSFER_BUFFER_SIZE);
+        }
+        return is;
+    }
+
+    /**
+     * 读完并关闭不使用的响应（304、错误码）的body，连接才能放回连接池
+     */
+    private static void discardResponse(HttpURLConnection conn, int responseCode) {
+        InputStream is;
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            is = conn.getErrorStream();
+        } else {
+            try {
+                is = conn.getInputStream();
+            } catch (IOException e) {
+                return;
+            }
+        }
+        if (is != null) {
+            drainAndClose(is, conn);
+        }
+    }
+
+    /**
+     * 把剩下的响应体读到末尾再关闭，连接才能被keep-alive复用；
+     * 解码器读完图片后可能还留着结尾的数据，取消时也可能还有没读的部分。
+     * 剩下的超过MAX_DRAIN_BYTES时不值得再读，直接断开
+     */
+    private static void drainAndClose(InputStream is, HttpURLConnection conn) {
+        try {
+            byte[] buf = getTransferBuffer();
+            long drained = 0;
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                drained += len;
+                if (drained > MAX_DRAIN_BYTES) {
+                    conn.disconnect();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 连接不能复用，忽略
+        } finally {
+            DiskLruCache.closeQuietly(is);
+        }
+    }
+
+    /**
+     * 解码途中被取消时中止解码。连接不disconnect：列表快速滑动时大部分取消发生在等待响应的途中，
+     * 断开后下一个请求又要重新建立连接；等响应回来后把body读完（或者超过MAX_DRAIN_BYTES时再断开），
+     * 连接还能留给keep-alive复用
+     */
+    private static class CancelDecodeListener implements CancellationSignal.OnCancelListener {
+        private final BitmapFactory.Options mOptions;
+
+        CancelDecodeListener(BitmapFactory.Options options) {
+            mOptions = options;
+        }
+
+        @Override
+        public void onCancel() {
+            mOptions.requestCancelDecode();
+        }
+    }
+
+    private static boolean isCanceled(CancellationSignal cancellationSignal) {
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+
     public static Bitmap downloadImageByUrl(String imgUrl, ImageView imageView) {
+        // 获取imageview想要显示的宽和高
+        ImageSizeUtil.ImageSize imageSize = ImageSizeUtil.getImageViewSize(imageView);
+        return downloadImageByUrl(imgUrl, imageSize.width, imageSize.height);
+    }
+
+    /**
+     * 根据url下载图片并按照需要显示的宽和高压缩
+     */
+    public static Bitmap downloadImageByUrl(String imgUrl, int reqWidth, int reqHeight) {
+        return downloadImageByUrl(imgUrl, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * 根据url下载图片并按照需要显示的宽和高压缩，cancellationSignal被取消时中止解码
+     */
+    public static Bitmap downloadImageByUrl(String imgUrl, int reqWidth, int reqHeight,
+            CancellationSignal cancellationSignal) {
+        return downloadImageByUrl(imgUrl, reqWidth, reqHeight, cancellationSignal, null);
+    }
+
+    /**
+     * 根据url下载图片并按照需要显示的宽和高压缩，metrics不为null时记录下载的字节数
+     */
+    public static Bitmap downloadImageByUrl(String imgUrl, int reqWidth, int reqHeight,
+            CancellationSignal cancellationSignal, RequestMetrics metrics) {
+        return downloadImageByUrl(imgUrl, reqWidth, reqHeight, false, cancellationSignal, metrics);
+    }
+
+    /**
+     * 同上，allowRgb565为true时不透明的图片用RGB_565解码
+     */
+    public static Bitmap downloadImageByUrl(String imgUrl, int reqWidth, int reqHeight, boolean allowRgb565,
+            CancellationSignal cancellationSignal, RequestMetrics metrics) {
+        return downloadImageByUrl(imgUrl, reqWidth, reqHeight, false, allowRgb565, cancellationSignal, metrics);
+    }
+
+    /**
+     * 同上，centerCrop为true时图片会被居中裁剪显示，解码的大小要覆盖reqWidth x reqHeight
+     */
+    public static Bitmap downloadImageByUrl(String imgUrl, int reqWidth, int reqHeight, boolean centerCrop,
+            boolean allowRgb565, CancellationSignal cancellationSignal, RequestMetrics metrics) {
 
         if (null == imgUrl) return null;
         try {
-            URL url = new URL(imgUrl);
-            HttpURLConnection httpConn = (HttpURLConnection) url.openConnection();
-            InputStream is = new BufferedInputStream(httpConn.getInputStream());
-            is.mark(is.available()); // 在InputStream中设置一个标记位置.
-            // 参数readlimit 表示多少字节可以读取.
-            // 调用reset()将重新流回到标记的位置
+            HttpURLConnection httpConn = openConnection(imgUrl, null);
             BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(is, null, options);
-            // 获取imageview想要显示的宽和高
-            ImageSizeUtil.ImageSize imageSize = ImageSizeUtil.getImageViewSize(imageView);
-            options.inSampleSize = ImageSizeUtil.caculateInSampleSize(options, imageSize.width,
-                    imageSize.height);
-            options.inJustDecodeBounds = false;
-            is.reset();  // Resets this stream to the last marked location.
-            Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
-            httpConn.disconnect();
-            is.close();
-            return bitmap;
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(new CancelDecodeListener(options));
+                if (cancellationSignal.isCanceled()) return null;
+            }
+            // 一般只建立一次连接：先标记流的开头，解析完头部拿到宽高后reset回去，接着解码剩下的数据，
+            // 不需要把整个图片读进内存，也不需要重新请求
+            int responseCode = httpConn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK || isCanceled(cancellationSignal)) {
+                discardResponse(httpConn, responseCode);
+                return null;
+            }
+            InputStream is = new BufferedInputStream(getResponseStream(httpConn, metrics), TRANSFER_BUFFER_SIZE);
+            try {
+                is.mark(HEADER_MARK_LIMIT);
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(is, null, options);
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    return null;  // 不是图片或者下载失败
+                }
+                ImageSizeUtil.planDecode(options, reqWidth, reqHeight, centerCrop);
+                ImageSizeUtil.planConfig(options, allowRgb565);
+                options.inJustDecodeBounds = false;
+                options.inTempStorage = getTransferBuffer();
+                try {
+                    is.reset();
+                } catch (IOException e) {
+                    // 头部超过HEADER_MARK_LIMIT，标记已经失效；放弃这个连接，按算好的options重新请求一次
+                    httpConn.disconnect();
+                    return redownloadAndDecode(imgUrl, options, cancellationSignal, metrics);
+                }
+                Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+                ImageSizeUtil.restoreDensity(bitmap, options);
+                return bitmap;
+            } finally {
+                drainAndClose(is, httpConn);  // 不disconnect，连接留给keep-alive复用
+            }
         } catch (MalformedURLException e) {
             e.printStackTrace();
         } catch (IOException e) {
-            e.printStackTrace();
+            if (cancellationSignal == null || !cancellationSignal.isCanceled())
+                e.printStackTrace();
+        } finally {
+            if (cancellationSignal != null)
+                cancellationSignal.setOnCancelListener(null);
         }
         return null;
     }
 
+    /**
+     * 头部太大、第一个连接的流reset不回去时，重新请求一次，用解析头部时算好的options直接解码
+     */
+    private static Bitmap redownloadAndDecode(String imgUrl, BitmapFactory.Options options,
+            CancellationSignal cancellationSignal, RequestMetrics metrics) throws IOException {
+        if (isCanceled(cancellationSignal)) return null;
+        HttpURLConnection httpConn = openConnection(imgUrl, null);
+        int responseCode = httpConn.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK || isCanceled(cancellationSignal)) {
+            discardResponse(httpConn, responseCode);
+            return null;
+        }
+        InputStream is = new BufferedInputStream(getResponseStream(httpConn, metrics), TRANSFER_BUFFER_SIZE);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+            ImageSizeUtil.restoreDensity(bitmap, options);
+            return bitmap;
+        } finally {
+            drainAndClose(is, httpConn);
+        }
+    }
 
     /**
      * 根据url下载图片在指定的文件
      */
     public static boolean downloadImageByUrl(String urlStr, File file) {
+        return downloadImageByUrl(urlStr, file, null);
+    }
+
+    /**
+     * 根据url下载图片在指定的文件，cancellationSignal被取消时返回false
+     */
+    public static boolean downloadImageByUrl(String urlStr, File file,
+            CancellationSignal cancellationSignal) {
+        return fetchImageByUrl(urlStr, file, null, cancellationSignal) != null;
+    }
+
+    /**
+     * 根据url下载图片在指定的文件；validators不为null时做条件请求，
+     * 服务器返回304时不写文件，返回的缓存信息isNotModified()为true
+     *
+     * @param validators 硬盘缓存中已有条目的缓存信息，为null时无条件下载
+     * @return 这次响应的缓存信息；下载失败或者被取消时返回null
+     */
+    public static CacheHeaders fetchImageByUrl(String urlStr, File file, CacheHeaders validators,
+            CancellationSignal cancellationSignal) {
+        return fetchImageByUrl(urlStr, file, validators, cancellationSignal, null);
+    }
+
+    /**
+     * 同上，metrics不为null时记录下载的字节数
+     */
+    public static CacheHeaders fetchImageByUrl(String urlStr, File file, CacheHeaders validators,
+            CancellationSignal cancellationSignal, RequestMetrics metrics) {
         FileOutputStream fos = null;
         InputStream is = null;
         try {
-            URL url = new URL(urlStr);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            if (isCanceled(cancellationSignal)) return null;
+            HttpURLConnection conn = openConnection(urlStr,
+                    validators != null && validators.hasValidators() ? validators : null);
 
-            is = conn.getInputStream();
+            int responseCode = conn.getResponseCode();
+            CacheHeaders headers = CacheHeaders.fromConnection(conn, System.currentTimeMillis());
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                discardResponse(conn, responseCode);
+                return validators.revalidated(headers);
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK || isCanceled(cancellationSignal)) {
+                discardResponse(conn, responseCode);
+                return null;
+            }
+
+            is = getResponseStream(conn, metrics);
             fos = new FileOutputStream(file);
-            byte[] buf = new byte[512];
+            byte[] buf = getTransferBuffer();
             int len = 0;
             while ((len = is.read(buf)) != -1) {
+                if (isCanceled(cancellationSignal)) {
+                    // 剩下的部分读完再关闭，连接还能复用
+                    drainAndClose(is, conn);
+                    is = null;
+                    return null;
+                }
                 fos.write(buf, 0, len);
             }
             fos.flush();
-            return true;
+            return headers;
 
         } catch (Exception e) {
-            e.printStackTrace();
+            if (cancellationSignal == null || !cancellationSignal.isCanceled())
+                e.printStackTrace();
         } finally {
             try {
                 if (is != null) {
@@ -92,8 +346,44 @@ public class DownloadImgUtils {
                 e.printStackTrace();
             }
         }
-        return false;
+        return null;
     }
 
+    /**
+     * 统计从连接中读到的字节数（压缩后的）
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final RequestMetrics mMetrics;
+
+        CountingInputStream(InputStream in, RequestMetrics metrics) {
+            super(in);
+            mMetrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mMetrics.bytesDownloaded++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mMetrics.bytesDownloaded += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mMetrics.bytesDownloaded += skipped;
+            return skipped;
+        }
+    }
 
 }
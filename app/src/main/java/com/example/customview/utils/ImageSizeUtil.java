@@ -1,6 +1,9 @@
 package com.example.customview.utils;
 
+import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.util.DisplayMetrics;
 import android.view.ViewGroup;
 import android.widget.ImageView;
@@ -13,6 +16,13 @@ import android.widget.ImageView;
  */
 public class ImageSizeUtil {
 
+    // 像素数超过这个值的图片只解码需要显示的区域
+    public static final long REGION_DECODE_MIN_PIXELS = 4096L * 4096;
+    // 密度缩放的精度，inTargetDensity / inDensity就是缩放比例
+    private static final int DENSITY_BASE = 1 << 16;
+    // 差距在这个比例以内时不再缩放
+    static final float SCALE_TOLERANCE = 0.01f;
+
     public static class ImageSize {
         int width;
         int height;
@@ -65,16 +75,145 @@ public class ImageSizeUtil {
      * 经过比较，得到一个合适的inSampleSize;
      */
     public static int caculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        return caculateInSampleSize(options, reqWidth, reqHeight, false);
+    }
+
+    /**
+     * 同上，centerCrop为true时结果要覆盖reqWidth x reqHeight
+     */
+    public static int caculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight,
+            boolean centerCrop) {
+        return caculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight, centerCrop);
+    }
+
+    public static int caculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        return caculateInSampleSize(width, height, reqWidth, reqHeight, false);
+    }
+
+    /**
+     * 解码器只能精确地按2的幂采样，取采样后仍然满足getScale的最大的2的幂，
+     * 剩下不到2倍的部分交给planDecode中的密度缩放
+     */
+    public static int caculateInSampleSize(int width, int height, int reqWidth, int reqHeight, boolean centerCrop) {
         int inSampleSize = 1;
-        int width = options.outWidth, height=options.outHeight;
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        float scale = getScale(width, height, reqWidth, reqHeight, centerCrop);
+        while (inSampleSize * 2 * scale <= 1f) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * 显示到reqWidth x reqHeight时原图需要的缩放比例，保持宽高比：
+     * centerCrop时图片要覆盖整个区域，多出的部分被裁掉，取较大的比例；
+     * 否则图片完整地放进区域中（fitCenter等），取较小的比例
+     */
+    public static float getScale(int width, int height, int reqWidth, int reqHeight, boolean centerCrop) {
+        float widthScale = (float) reqWidth / width;
+        float heightScale = (float) reqHeight / height;
+        return centerCrop ? Math.max(widthScale, heightScale) : Math.min(widthScale, heightScale);
+    }
+
+    /**
+     * 选择解码的格式：不透明的图片在允许时用RGB_565，每个像素2个字节，内存减半；其它保持ARGB_8888
+     *
+     * @param options     已经解析出outMimeType
+     * @param allowRgb565 请求允许并且之后的变换不需要透明通道
+     */
+    public static void planConfig(BitmapFactory.Options options, boolean allowRgb565) {
+        options.inPreferredConfig = allowRgb565 && isOpaque(options)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 从头部判断图片没有透明通道；JPEG不支持透明，PNG/WebP/GIF可能有，按有处理
+     */
+    public static boolean isOpaque(BitmapFactory.Options options) {
+        return "image/jpeg".equals(options.outMimeType);
+    }
 
-        if(width > reqWidth || height > reqHeight) {
-            int widthRadio = Math.round(width/reqWidth);
-            int heightRadio = Math.round(height/reqHeight);
-            inSampleSize = Math.max(widthRadio, heightRadio);
+    public static void planDecode(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        planDecode(options, reqWidth, reqHeight, false);
+    }
+
+    /**
+     * 规划一次解码：先按2的幂采样，再用inDensity/inTargetDensity让解码器在解码时缩放，
+     * 结果刚好放进reqWidth x reqHeight，centerCrop时刚好覆盖reqWidth x reqHeight（都保持宽高比），
+     * 不会比需要的大将近2倍
+     *
+     * @param options    已经解析出原图的宽高(outWidth/outHeight，未经过密度缩放)
+     * @param centerCrop 结果会被居中裁剪到reqWidth x reqHeight
+     */
+    public static void planDecode(BitmapFactory.Options options, int reqWidth, int reqHeight, boolean centerCrop) {
+        int width = options.outWidth, height = options.outHeight;
+        options.inSampleSize = caculateInSampleSize(width, height, reqWidth, reqHeight, centerCrop);
+        options.inScaled = false;
+        options.inDensity = 0;
+        options.inTargetDensity = 0;
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return;
+        }
+        // 采样之后还需要的缩放比例，在(0.5, 1]之间
+        float remaining = getScale(width, height, reqWidth, reqHeight, centerCrop) * options.inSampleSize;
+        if (remaining < 1f - SCALE_TOLERANCE) {
+            options.inScaled = true;
+            options.inDensity = DENSITY_BASE;
+            options.inTargetDensity = (int) Math.ceil(remaining * DENSITY_BASE);  // 向上取整，不会比需要的小
+        }
+    }
+
+    /**
+     * 按planDecode的结果解码出来的一条边的长度
+     */
+    public static int getDecodedSize(int size, BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int sampled = (size + sampleSize - 1) / sampleSize;
+        if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0
+                && options.inDensity != options.inTargetDensity) {
+            return (int) (sampled * ((float) options.inTargetDensity / options.inDensity) + 0.5f);
         }
+        return sampled;
+    }
 
-        return inSampleSize;
+    /**
+     * 密度缩放解码出来的bitmap密度是inTargetDensity，改回屏幕密度，否则BitmapDrawable会再缩放一次
+     */
+    public static void restoreDensity(Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap != null && options.inScaled && options.inDensity == DENSITY_BASE) {
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+    }
+
+    /**
+     * 像素数超过REGION_DECODE_MIN_PIXELS的图片（全景图、扫描件）按区域解码
+     *
+     * @param options 已经解析出原图的宽高
+     */
+    public static boolean shouldDecodeRegion(BitmapFactory.Options options) {
+        return (long) options.outWidth * options.outHeight >= REGION_DECODE_MIN_PIXELS;
+    }
+
+    /**
+     * 居中裁剪到reqWidth x reqHeight时原图中可见的区域
+     */
+    public static Rect getCenterCropRegion(int width, int height, int reqWidth, int reqHeight) {
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return new Rect(0, 0, width, height);
+        }
+        int regionWidth = width, regionHeight = height;
+        if ((long) width * reqHeight > (long) reqWidth * height) {
+            regionWidth = (int) ((long) height * reqWidth / reqHeight);  // 原图更宽，裁掉左右
+        } else {
+            regionHeight = (int) ((long) width * reqHeight / reqWidth);  // 原图更高，裁掉上下
+        }
+        regionWidth = Math.max(1, regionWidth);
+        regionHeight = Math.max(1, regionHeight);
+        int left = (width - regionWidth) / 2;
+        int top = (height - regionHeight) / 2;
+        return new Rect(left, top, left + regionWidth, top + regionHeight);
     }
 
-}
\ No newline at end of file
+}
@@ -1,25 +1,55 @@
 package com.example.customview.utils;
 
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.v4.util.LruCache;
 import android.util.Log;
-import android.util.LruCache;
+import android.view.Choreographer;
+import android.widget.ImageView;
 
 import com.example.customview.view.CustomImageView;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
 
 
 
@@ -35,93 +65,191 @@ public class MyImageLoader {
     public static final String TAG = "MyImageLoader";
 
     private static MyImageLoader mInstance;
-    private LruCache<String, Bitmap> mLruCache;  // 图片缓存的核心对象
-    private ExecutorService mThreadPool;  // 线程池
-    private static final int DEFAULT_THREAD_COUNT = 1;
+    private LruCache<RequestKey, Bitmap> mLruCache;  // 图片缓存的核心对象
+    private BitmapPool mBitmapPool;  // 复用LruCache淘汰下来的bitmap内存
+    // 第二级内存缓存：网络图片编码后的字节（比bitmap小5到20倍），key为硬盘缓存的key；没有开启时为null
+    private LruCache<String, EncodedImage> mEncodedCache;
+    private int mMaxEncodedCacheSize;
+    private final CacheStats mCacheStats = new CacheStats();
+    private int mMaxMemoryBudget;  // 配置的LruCache和BitmapPool共用的内存上限
+    private volatile int mMemoryBudget;  // 当前的内存上限，系统内存紧张时按onTrimMemory的级别缩小
+    private volatile long mLastTrimTime;  // 最后一次缩小预算的时间，SystemClock.uptimeMillis()
+    private volatile boolean isMemoryCallbacksRegistered;
+    private static final float DEFAULT_MEMORY_CACHE_FRACTION = 1f / 8;  // 默认使用最大可用内存的1/8
+    // 最后一次onTrimMemory之后这么久没有新的内存压力，恢复完整的预算
+    private static final long MEMORY_RECOVERY_DELAY = 10 * 1000;
 
-    private LinkedList<Runnable> mTaskQueue;  // 任务队列
+    // 同一张图片不同目标大小的未变换版本，key为path；缺少某个大小时可以从更大的版本缩小得到
+    private final Map<String, List<RequestKey>> mCacheVariants = new HashMap<>();
 
-    private Thread mBackstageThread;  // 后台轮询线程
-    private Handler mBackstageThreadHandler;
+    // bitmap的引用计数：LruCache、等待分发、正在显示各算一次，降为0时放入BitmapPool
+    private final Map<Bitmap, Integer> mBitmapRefs = new IdentityHashMap<>();
+    // 每个imageView当前显示的由加载器分发的bitmap，只在主线程访问。
+    // imageView没有detach就被回收时，记录进入mCollectedViews，在主线程中释放它显示的bitmap
+    private final Map<CustomImageView, DisplayedBitmap> mDisplayedBitmaps = new WeakHashMap<>();
+    private final ReferenceQueue<CustomImageView> mCollectedViews = new ReferenceQueue<>();
+    // 按阶段分开的调度器：读硬盘缓存、下载、解码和变换各自排队，硬盘命中不用等在慢速下载后面，
+    // 解码线程数和CPU核数一致；任务在阶段之间转交，不占着线程等待
+    private TaskScheduler mDiskScheduler;
+    private TaskScheduler mNetworkScheduler;
+    private TaskScheduler mDecodeScheduler;
+    private static final int DEFAULT_NETWORK_THREAD_COUNT = 4;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+    private static final int DEFAULT_DISK_THREAD_COUNT = 2;
 
-    // Semaphore, 它负责协调各个线程, 以保证它们能够正确、合理的使用公共资源。
-    // 也是操作系统中用于控制进程同步互斥的量。
-    // Semaphore分为单值和多值两种，前者只能被一个线程获得，后者可以被若干个线程获得。
-    // 停车场系统中，车位是公共资源，每辆车好比一个线程，看门人起的就是信号量的作用
-    private Semaphore mBackstageThreadSemaphore;
-    private Semaphore mBackstageThreadHandlerSemaphore = new Semaphore(0);
+    private static final int STAGE_DISK = RequestMetrics.STAGE_DISK;  // 查硬盘缓存的索引和缓存信息
+    private static final int STAGE_NETWORK = RequestMetrics.STAGE_NETWORK;  // 下载或者重新验证
+    private static final int STAGE_DECODE = RequestMetrics.STAGE_DECODE;  // 解码和变换
+    private static final String[] STAGE_TRACE_NAMES = {TAG + ":disk", TAG + ":network", TAG + ":decode"};
+
+    // 没有listener时不记录任何数据
+    private volatile MetricsListener mMetricsListener;
+    private volatile boolean isTraceEnabled;
+    private static final int DEFAULT_MAX_QUEUE_SIZE = 64;  // 排队任务上限，超出时丢弃最陈旧的任务
+
+    private static final String SCHEME_RES = "res://";  // 本地资源图片的path前缀
+    private static final int PREVIEW_SAMPLE_SIZE = 8;  // 渐进式加载的缩略图比完整的图片再缩小的倍数
 
     private static final Object syncObject = new Object();  // 单例模式 && synchronized
 
     public enum QueueType {FIFO, LIFO}
 
-    private QueueType mType = QueueType.LIFO;
+    private QueueType mType = QueueType.LIFO;  // 请求没有指定出队策略时使用
 
     private boolean isDiskCacheEnable = true;  // 硬盘缓存可用
 
+    private static final String DISK_CACHE_DIR = "images";  // 硬盘缓存目录名
+    private static final int DISK_CACHE_VERSION = 3;  // 文件名改为RequestKey的hash，旧的缓存作废
+    private static final int DISK_CACHE_INDEX = 0;  // 图片文件在缓存条目中的下标
+    private static final int DISK_CACHE_META_INDEX = 1;  // ETag/Last-Modified/过期时间在缓存条目中的下标
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+    private static final long DEFAULT_DISK_CACHE_SIZE = 50 * 1024 * 1024;  // 默认硬盘缓存50M
+
+    private DiskLruCache mDiskLruCache;  // 硬盘缓存，第一次使用时打开
+    // 旧版本直接把图片存在缓存根目录下，文件名是path的md5；不在DiskLruCache的预算中，打开硬盘缓存时删掉
+    private static final Pattern LEGACY_CACHE_FILE = Pattern.compile("[0-9a-f]{32}");
+    private boolean isLegacyCacheDeleted;  // 在mDiskCacheLock中读写
+    // 小图片的合并存储，和硬盘缓存一起第一次使用时打开；mPackedEntrySize为0时不使用
+    private static final String PACKED_STORE_DIR = "images_packed";
+    private static final int DEFAULT_PACKED_ENTRY_SIZE = 16 * 1024;
+    private static final int PACKED_STORE_FRACTION = 4;  // 合并存储的段文件占硬盘缓存总大小的1/4
+    private PackedBlobStore mPackedStore;
+    private int mPackedEntrySize = DEFAULT_PACKED_ENTRY_SIZE;
+    private long mDiskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+    private final Object mDiskCacheLock = new Object();
+
     // UI Thread
     private Handler mUIHandler;
+    private static final int MSG_SCHEDULE_DELIVERY = 1;
+
+    // 工作线程完成的结果先放进mPendingDeliveries，每一帧在主线程中统一设置一次；
+    // 两个列表轮流使用，分发时不需要分配新的列表
+    private final Object mDeliveryLock = new Object();
+    private ArrayList<ImageBeanHolder> mPendingDeliveries = new ArrayList<>();
+    private ArrayList<ImageBeanHolder> mDeliveringBatch = new ArrayList<>();
+    private boolean isDeliveryScheduled;  // 在mDeliveryLock中读写
+    private Object mFrameCallback;  // Choreographer.FrameCallback，API 16以下没有这个类；只在主线程访问
+
+    // 复用ImageBeanHolder，分发不产生垃圾
+    private static final int MAX_POOLED_HOLDERS = 32;
+    private final ArrayList<ImageBeanHolder> mHolderPool = new ArrayList<>();
+
+    // 正在加载中的请求，key为path + 目标大小 + 变换；同一个key的并发请求共用一次下载和解码
+    private final Map<RequestKey, InFlightRequest> mInFlightRequests = new HashMap<>();
+
+    // 正在写入硬盘缓存的key -> 等待它提交的请求。同一个url不同大小的请求共用一个硬盘缓存条目，
+    // 只有一个能拿到Editor，其它的等它提交后从硬盘缓存阶段继续，不重复下载
+    private final Map<String, List<InFlightRequest>> mDiskWriteWaiters = new HashMap<>();
+
+    // 每个imageView当前绑定的请求，重新绑定或者detach时取消旧的请求；只在主线程访问
+    private final Map<CustomImageView, ViewTarget> mViewTargets = new WeakHashMap<>();
+
+    // pause()期间新建的请求先放在这里不提交，resume()时只提交仍然需要的；isPaused也在它的锁中修改
+    private final List<InFlightRequest> mPausedRequests = new ArrayList<>();
+    private volatile boolean isPaused;
 
 
     public static MyImageLoader getInstance() {
         if (mInstance == null) {
-            mInstance = new MyImageLoader(DEFAULT_THREAD_COUNT, QueueType.LIFO);
+            synchronized (syncObject) {
+                if (mInstance == null) {
+                    mInstance = new Builder().build();
+                }
+            }
         }
         return mInstance;
     }
 
-    private MyImageLoader(int threadCount, QueueType type) {
-        init(threadCount, type);
+    /**
+     * 使用Builder配置好的实例作为全局单例，需要在第一次调用getInstance之前设置
+     *
+     * @param loader
+     */
+    public static void setSingletonInstance(MyImageLoader loader) {
+        synchronized (syncObject) {
+            if (mInstance != null) {
+                throw new IllegalStateException("Singleton instance already exists.");
+            }
+            mInstance = loader;
+        }
+    }
+
+    private MyImageLoader(Builder builder) {
+        init(builder);
     }
 
-    private void init(int threadCount, QueueType type) {
-        initBackThread();
+    private void init(Builder builder) {
+        mUIHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SCHEDULE_DELIVERY) {
+                    scheduleDelivery();
+                }
+            }
+        };
 
         // get the max available memory
-        int maxMemory = (int) Runtime.getRuntime().maxMemory();
-        int cacheMemory = maxMemory / 8;
+        int cacheMemory = builder.memoryCacheSize > 0 ? builder.memoryCacheSize
+                : (int) (Runtime.getRuntime().maxMemory() * builder.memoryCacheFraction);
+        mMaxMemoryBudget = cacheMemory;
+        mMemoryBudget = cacheMemory;
 
         // 继承LruCache时，必须要复写sizeof方法，用于计算每个条目的大小
-        // the size of bitmap can not over cacheMemory
-        mLruCache = new LruCache<String, Bitmap>(cacheMemory) {
+        // the size of bitmap can not over cacheMemory；内存紧张时用trimToSize限制在mMemoryBudget以内
+        mLruCache = new LruCache<RequestKey, Bitmap>(cacheMemory) {
             @Override
-            protected int sizeOf(String key, Bitmap value) {
-                return value.getByteCount();
+            protected int sizeOf(RequestKey key, Bitmap value) {
+                return BitmapPool.getBitmapByteSize(value);
             }
-        };
-
-        // create thread pool that
-        // reuses a fixed number of threads operating off a shared unbounded queue.
-        mThreadPool = Executors.newFixedThreadPool(threadCount);
-        mTaskQueue = new LinkedList<>();
-        mType = type;
-        mBackstageThreadSemaphore = new Semaphore(threadCount);
-    }
 
-    /**
-     * 初始化后台轮询线程
-     */
-    private void initBackThread() {
-        mBackstageThread = new Thread() {
             @Override
-            public void run() {
-                Looper.prepare();
-                mBackstageThreadHandler = new Handler() {
-                    @Override
-                    public void handleMessage(Message msg) {
-                        mThreadPool.execute(getTask());  // 线程池去取出一个任务进行执行
-                        try {
-                            mBackstageThreadSemaphore.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                };
-                mBackstageThreadHandlerSemaphore.release();  // 释放一个信号量
-                Looper.loop();
+            protected void entryRemoved(boolean evicted, RequestKey key, Bitmap oldValue, Bitmap newValue) {
+                if (newValue == null) {
+                    removeCacheVariant(key);
+                }
+                releaseBitmap(oldValue);  // 被淘汰或者被替换，不再显示时进入复用池
             }
         };
-        mBackstageThread.start();
+        // 复用池最多占总预算的1/4，并且和LruCache加起来不超过总预算
+        mBitmapPool = new BitmapPool(cacheMemory / 4);
+        if (builder.encodedCacheSize > 0) {
+            mMaxEncodedCacheSize = builder.encodedCacheSize;
+            mEncodedCache = new LruCache<String, EncodedImage>(builder.encodedCacheSize) {
+                @Override
+                protected int sizeOf(String key, EncodedImage value) {
+                    return value.data.length;
+                }
+            };
+        }
+
+        mDiskScheduler = new TaskScheduler(TAG + "-disk", builder.diskThreadCount, builder.maxQueueSize);
+        mNetworkScheduler = new TaskScheduler(TAG + "-net", builder.threadCount, builder.maxQueueSize);
+        mNetworkScheduler.setMaxTasksPerHost(builder.maxRequestsPerHost);
+        mDecodeScheduler = new TaskScheduler(TAG + "-decode", builder.decodeThreadCount, builder.maxQueueSize);
+        mType = builder.queueType;
+        mDiskCacheSize = builder.diskCacheSize;
+        isDiskCacheEnable = builder.diskCacheEnable;
+        mPackedEntrySize = builder.packedEntrySize;
     }
 
 
@@ -130,6 +258,77 @@ public class MyImageLoader {
         void onLoadFinished();
     }
 
+    /**
+     * 每个完成的加载（包括内存缓存命中和失败）回调一次，等待的imageView都取消了的加载也回调一次（isCanceled()为true），
+     * 合并到同一个任务上的imageView只回调一次。在主线程中执行，不要做耗时的操作
+     */
+    public interface MetricsListener {
+
+        void onRequestMetrics(RequestMetrics metrics);
+    }
+
+    /**
+     * 设置之后开始记录每个请求各阶段的耗时、命中来源和数据量，传null停止记录
+     *
+     * @param listener
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
+    /**
+     * 用android.os.Trace标记各个阶段，在systrace中可以看到；API 18以下无效
+     *
+     * @param enable
+     */
+    public void setTraceEnabled(boolean enable) {
+        isTraceEnabled = enable;
+    }
+
+    private void beginTrace(String name) {
+        if (isTraceEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    private void endTrace() {
+        if (isTraceEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * 有listener时新建一条记录，否则返回null
+     */
+    private RequestMetrics newMetrics(String path, ImageSizeUtil.ImageSize imageSize) {
+        if (mMetricsListener == null) {
+            return null;
+        }
+        RequestMetrics metrics = new RequestMetrics(path, System.nanoTime());
+        metrics.queueDepth = mDiskScheduler.getQueueSize() + mNetworkScheduler.getQueueSize()
+                + mDecodeScheduler.getQueueSize();
+        metrics.displayedBytes = (long) imageSize.width * imageSize.height * 4;
+        return metrics;
+    }
+
+    private void reportMetrics(RequestMetrics metrics) {
+        MetricsListener listener = mMetricsListener;
+        if (listener != null) {
+            listener.onRequestMetrics(metrics);
+        }
+    }
+
+
+    /**
+     * 本地资源图片的path，可以和网络图片一样交给加载器在工作线程中解码和变换
+     *
+     * @param resId
+     * @return
+     */
+    public static String resourcePath(int resId) {
+        return SCHEME_RES + resId;
+    }
+
 
     /**
      * 从网络加载图片
@@ -138,284 +337,2130 @@ public class MyImageLoader {
      * @param isFromNet
      */
     public void loadImage(String path, final CustomImageView imageView, boolean isFromNet) {
-        imageView.setTag(path);
-        if (mUIHandler == null) {
-            mUIHandler = new Handler() {
-                @Override
-                public void handleMessage(Message msg) {
-                    ImageBeanHolder holder = (ImageBeanHolder) msg.obj;
-                    Bitmap bm = holder.bitmap;
-                    CustomImageView iv = holder.imageView;
-                    String path = holder.path;
-                    if (iv.getTag().toString().equals(path)) {
-                        iv.setImageBitmap(bm);
-                    }
-                }
-            };
-        }
+        loadImage(path, imageView, isFromNet, null);
+    }
 
-        Bitmap bitmap = getBitmapFromLruCache(path);  // 根据path在缓存中获取bitmap
-        if (bitmap != null) {
-            refreshBitmap(path, imageView, bitmap);
-        } else {
-            addTask(buildTask(path, imageView, isFromNet));
-        }
+    /**
+     * 从网络加载图片
+     * @param path
+     * @param imageView
+     * @param isFromNet
+     * @param options 优先级、出队策略、变换等，为null时使用默认值
+     */
+    public void loadImage(String path, final CustomImageView imageView, boolean isFromNet,
+            RequestOptions options) {
+        load(path, imageView, isFromNet, options, null);
     }
 
 
     /**
-     * 加载圆角图片
+     * 加载圆形图片，裁剪在工作线程中完成，缓存的就是裁剪后的结果
      * @param path
      * @param imageView
      * @param isFromNet
      */
     public void loadCircleImage(String path, final CustomImageView imageView,
             boolean isFromNet, final ILoadingComplete iLoadingComplete) {
-        imageView.setTag(path);
-        mUIHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                ImageBeanHolder holder = (ImageBeanHolder) msg.obj;
-                Bitmap bm = holder.bitmap;
-                CustomImageView iv = holder.imageView;
-                String path = holder.path;
-                if (iv.getTag().toString().equals(path)) {
-                    iv.setImageBitmap(bm);
-                }
-                if(iLoadingComplete != null){
-                    iLoadingComplete.onLoadFinished();
-                }
-            }
-        };
-
-        Bitmap bitmap = getBitmapFromLruCache(path);  // 根据path在缓存中获取bitmap
-        if (bitmap != null) {
-            refreshBitmap(path, imageView, bitmap);
-        } else {
-            addTask(buildTask(path, imageView, isFromNet));
+        if (imageView.getRenderMode() == CustomImageView.RENDER_MODE_SHADER) {
+            RequestOptions options = new RequestOptions();
+            options.centerCrop = true;  // 形状由imageView绘制，图片居中裁剪到形状中
+            load(path, imageView, isFromNet, options, iLoadingComplete);
+            return;
         }
+        RequestOptions options = new RequestOptions().transform(Transformations.circle());
+        if (imageView.getBorderWidth() > 0) {
+            options.transform(Transformations.border(imageView.getBorderWidth(),
+                    imageView.getBorderColor(), -1));
+        }
+        load(path, imageView, isFromNet, options, iLoadingComplete);
     }
 
 
 
     /**
-     * 加载圆角图片
+     * 加载圆角图片，圆角半径使用imageView的borderRadius
      * @param path
      * @param imageView
      * @param isFromNet
      */
     public void loadRoundImage(String path, final CustomImageView imageView,
             boolean isFromNet, final ILoadingComplete iLoadingComplete) {
-        imageView.setTag(path);
-        if (mUIHandler == null) {
-            mUIHandler = new Handler() {
-                @Override
-                public void handleMessage(Message msg) {
-                    ImageBeanHolder holder = (ImageBeanHolder) msg.obj;
-                    Bitmap bm = holder.bitmap;
-                    CustomImageView iv = holder.imageView;
-                    String path = holder.path;
-                    if (iv.getTag().toString().equals(path)) {
-                        iv.setImageBitmap(bm);
-                    }
-                    if(iLoadingComplete != null){
-                        iLoadingComplete.onLoadFinished();
-                    }
-                }
-            };
+        loadRoundImage(path, imageView, isFromNet, imageView.getBorderRadius(), iLoadingComplete);
+    }
+
+    /**
+     * 加载圆角图片
+     * @param path
+     * @param imageView
+     * @param isFromNet
+     * @param radius 圆角半径，px
+     */
+    public void loadRoundImage(String path, final CustomImageView imageView,
+            boolean isFromNet, int radius, final ILoadingComplete iLoadingComplete) {
+        if (imageView.getRenderMode() == CustomImageView.RENDER_MODE_SHADER) {
+            RequestOptions options = new RequestOptions();
+            options.centerCrop = true;  // 形状由imageView绘制，图片居中裁剪到形状中
+            load(path, imageView, isFromNet, options, iLoadingComplete);
+            return;
+        }
+        RequestOptions options = new RequestOptions().transform(Transformations.roundedCorners(radius));
+        if (imageView.getBorderWidth() > 0) {
+            options.transform(Transformations.border(imageView.getBorderWidth(),
+                    imageView.getBorderColor(), radius));
         }
+        load(path, imageView, isFromNet, options, iLoadingComplete);
+    }
+
+
+    private void load(String path, CustomImageView imageView, boolean isFromNet,
+            RequestOptions options, ILoadingComplete iLoadingComplete) {
+        imageView.setTag(path);
+        registerMemoryCallbacks(imageView.getContext());
+        restoreMemoryBudget();
+        releaseCollectedViews();
+        ImageSizeUtil.ImageSize imageSize = ImageSizeUtil.getImageViewSize(imageView);
+        boolean centerCrop = isCenterCrop(imageView, options);
+        RequestKey cacheKey = getCacheKey(path, imageSize, options, centerCrop);
 
-        Bitmap bitmap = getBitmapFromLruCache(path);  // 根据path在缓存中获取bitmap
+        Bitmap bitmap = acquireFromLruCache(cacheKey);  // 根据key在缓存中获取bitmap，这次分发持有一次引用
         if (bitmap != null) {
-            refreshBitmap(path, imageView, bitmap);
+            mCacheStats.hit(CacheStats.TIER_MEMORY);
+            cancelRequest(imageView);
+            RequestMetrics metrics = newMetrics(path, imageSize);
+            if (metrics != null) {
+                metrics.source = RequestMetrics.Source.MEMORY;
+                metrics.success = true;
+                metrics.decodedBytes = BitmapPool.getBitmapByteSize(bitmap);
+                metrics.bytesPerPixel = BitmapPool.getBytesPerPixel(bitmap.getConfig());
+            }
+            refreshBitmap(path, cacheKey, imageView, bitmap, null, iLoadingComplete, false, metrics);
         } else {
-            addTask(buildTask(path, imageView, isFromNet));
+            mCacheStats.miss(CacheStats.TIER_MEMORY);
+            if (options != null && options.progressive) {
+                Bitmap preview = acquireFromLruCache(cacheKey.preview());
+                if (preview != null) {  // 缩略图还在内存中，先显示出来
+                    refreshBitmap(path, cacheKey.preview(), imageView, preview, null, null, true, null);
+                }
+            }
+            enqueueRequest(path, cacheKey, imageSize, centerCrop, imageView, isFromNet, options, iLoadingComplete);
         }
     }
 
+    /**
+     * 内存缓存的key：解码的大小和变换都会影响结果，拼上目标大小和变换的key，
+     * 避免小控件先加载时大控件只能拿到缩略图，或者反过来小控件占着整张大图。
+     * 每个请求只构建一次，之后的内存缓存、硬盘缓存和正在加载的表都直接使用
+     *
+     * @param path
+     * @param imageSize
+     * @param options
+     * @return
+     */
+    private RequestKey getCacheKey(String path, ImageSizeUtil.ImageSize imageSize, RequestOptions options,
+            boolean centerCrop) {
+        String transformationKey = options != null ? Transformations.key(options.transformations) : "";
+        if (options != null && !options.allowRgb565) {
+            transformationKey += "#argb8888";  // 和允许RGB_565的结果分开缓存
+        }
+        if (centerCrop && (options == null || !Transformations.isCenterCrop(options.transformations))) {
+            transformationKey += "#cover";  // 覆盖控件解码的结果比完整放进控件的大，分开缓存
+        }
+        return new RequestKey(path, imageSize.width, imageSize.height, transformationKey);
+    }
 
+    /**
+     * 图片显示时是否会被居中裁剪：第一个变换是裁剪、shader模式画圆形或圆角，或者imageView是CENTER_CROP。
+     * 是的话解码的大小要覆盖整个控件，否则只需要完整地放进控件
+     */
+    private static boolean isCenterCrop(CustomImageView imageView, RequestOptions options) {
+        return isCenterCrop(imageView.getScaleType(), options);
+    }
+
+    private static boolean isCenterCrop(ImageView.ScaleType scaleType, RequestOptions options) {
+        if (options != null && (options.centerCrop || Transformations.isCenterCrop(options.transformations))) {
+            return true;
+        }
+        return scaleType == ImageView.ScaleType.CENTER_CROP;
+    }
 
-    private void refreshBitmap(String path, final CustomImageView imageView, Bitmap bitmap) {
-        Message msg = Message.obtain();
-        ImageBeanHolder holder = new ImageBeanHolder();
+    /**
+     * 把结果交给imageView：在主线程中（内存缓存命中）直接设置，不用等到下一帧；
+     * 工作线程的结果攒到下一帧统一设置。
+     * 调用者需要已经为这次分发持有bitmap的一次引用，分发途中不能被复用，deliverToView中释放
+     */
+    private void refreshBitmap(String path, RequestKey key, final CustomImageView imageView, Bitmap bitmap,
+            ViewTarget target, ILoadingComplete iLoadingComplete, boolean isPreview, RequestMetrics metrics) {
+        ImageBeanHolder holder = obtainHolder();
         holder.imageView = imageView;
         holder.bitmap = bitmap;
         holder.path = path;
-        msg.obj = holder;
-        mUIHandler.sendMessage(msg);
+        holder.key = key;
+        holder.target = target;
+        holder.iLoadingComplete = iLoadingComplete;
+        holder.isPreview = isPreview;
+        holder.metrics = metrics;
+        if (metrics != null) {
+            metrics.postTime = System.nanoTime();
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            deliverToView(holder);
+            recycleHolder(holder);
+            return;
+        }
+        boolean schedule;
+        synchronized (mDeliveryLock) {
+            mPendingDeliveries.add(holder);
+            schedule = !isDeliveryScheduled;
+            isDeliveryScheduled = true;
+        }
+        if (schedule) {  // 这一帧已经安排过分发的话只需要排进列表
+            mUIHandler.sendEmptyMessage(MSG_SCHEDULE_DELIVERY);
+        }
     }
 
     /**
-     * 就是runnable加入TaskQueue，与此同时使用mBackstageThreadHandler（这个handler还记得么，
-     * 用于和我们后台线程交互。）去发送一个消息给后台线程，叫它去取出一个任务执行
-     *
-     * @param runnable
+     * 在主线程中安排分发：API 16及以上等到下一帧开始绘制之前，和其它结果一起设置；以下直接分发
      */
-    private synchronized void addTask(Runnable runnable) {
-        mTaskQueue.add(runnable);
-        try {
-            if (mBackstageThreadHandler == null)
-                mBackstageThreadHandlerSemaphore.acquire();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void scheduleDelivery() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameCallback == null) {
+                mFrameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        flushDeliveries();
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        } else {
+            flushDeliveries();
         }
-        mBackstageThreadHandler.sendEmptyMessage(0x110); //
     }
 
     /**
-     * 就是根据Type从任务队列头或者尾进行取任务
-     *
-     * @return
+     * 一次设置所有攒下的结果，这一帧只需要一次布局和绘制
      */
-    private Runnable getTask() {
-        if (mType == QueueType.FIFO) {
-            return mTaskQueue.removeFirst();
-        } else if (mType == QueueType.LIFO) {
-            return mTaskQueue.removeLast();
+    private void flushDeliveries() {
+        ArrayList<ImageBeanHolder> batch;
+        synchronized (mDeliveryLock) {
+            batch = mPendingDeliveries;
+            mPendingDeliveries = mDeliveringBatch;
+            mDeliveringBatch = batch;
+            isDeliveryScheduled = false;
+        }
+        beginTrace(TAG + ":deliverBatch");
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ImageBeanHolder holder = batch.get(i);
+                deliverToView(holder);
+                recycleHolder(holder);
+            }
+        } finally {
+            batch.clear();
+            endTrace();
+        }
+    }
+
+    private ImageBeanHolder obtainHolder() {
+        synchronized (mHolderPool) {
+            int size = mHolderPool.size();
+            if (size > 0) {
+                return mHolderPool.remove(size - 1);
+            }
+        }
+        return new ImageBeanHolder();
+    }
+
+    private void recycleHolder(ImageBeanHolder holder) {
+        holder.bitmap = null;
+        holder.imageView = null;
+        holder.path = null;
+        holder.key = null;
+        holder.target = null;
+        holder.iLoadingComplete = null;
+        holder.isPreview = false;
+        holder.metrics = null;
+        synchronized (mHolderPool) {
+            if (mHolderPool.size() < MAX_POOLED_HOLDERS) {
+                mHolderPool.add(holder);
+            }
         }
-        return null;
     }
 
     /**
-     * 我们新建任务，说明在内存中没有找到缓存的bitmap；我们的任务就是去根据path加载压缩后的bitmap返回即可，然后加入LruCache，设置回调显示。
-     * 首先我们判断是否是网络任务？
-     * 如果是，首先去硬盘缓存中找一下，（硬盘中文件名为：根据path生成的md5为名称）。
-     * 如果硬盘缓存中没有，那么去判断是否开启了硬盘缓存：
-     * 开启了的话：下载图片，使用loadImageFromLocal本地加载图片的方式进行加载（压缩的代码前面已经详细说过）；
-     * 如果没有开启：则直接从网络获取（压缩获取的代码，前面详细说过）；
-     * 如果不是网络图片：直接loadImageFromLocal本地加载图片的方式进行加载
-     * 经过上面，就获得了bitmap；然后加入addBitmapToLruCache，refreashBitmap回调显示图片
+     * 在主线程中把结果设置给imageView；请求已经被取消或者imageView已经绑定了别的path时丢弃。
+     * 缩略图只替换显示的图片，请求还没有结束，不解除绑定也不回调
      *
-     * @param path
-     * @param imageView
-     * @param isFromNet
-     * @return
+     * @param holder
      */
-    private Runnable buildTask(final String path, final CustomImageView imageView, final boolean isFromNet) {
-        return new Runnable() {
-            @Override
-            public void run() {
-                Bitmap bitmap = null;
-                if (isFromNet) {
-                    File file = getDiskCacheDir(imageView.getContext(), md5(path));
-                    if (file.exists()) { // 如果本地已经缓存了该文件
-                        bitmap = loadImageFromLocal(file.getAbsolutePath(), imageView);
-                        if (bitmap == null)
-                            Log.d(TAG, "load image failed from local: " + path);
-                    } else {  // 需要从网络下载
-                        if (isDiskCacheEnable) { // 检测是否开启硬盘缓存
-                            boolean downloadState = DownloadImgUtils.downloadImageByUrl(path, file);
-                            if (downloadState) {
-                                bitmap = loadImageFromLocal(file.getAbsolutePath(), imageView);
-                            }
-                            if (bitmap == null)
-                                Log.d(TAG, "download image failed to diskcache(" + path + ")");
-                        } else {  // 直接从网络加载到imageView
-                            bitmap = DownloadImgUtils.downloadImageByUrl(path, imageView);
-                            if (bitmap == null)
-                                Log.d(TAG, "download image failed to memory(" + path + ")");
-                        }
-                    }
+    private void deliverToView(ImageBeanHolder holder) {
+        beginTrace(TAG + ":deliver");
+        try {
+            deliverToViewInternal(holder);
+        } finally {
+            endTrace();
+        }
+        if (holder.metrics != null) {
+            holder.metrics.deliverTime = System.nanoTime();
+            reportMetrics(holder.metrics);
+        }
+    }
+
+    private void deliverToViewInternal(ImageBeanHolder holder) {
+        CustomImageView iv = holder.imageView;
+        ViewTarget target = holder.target;
+        if (!holder.isPreview && target != null && mViewTargets.get(iv) == target) {
+            mViewTargets.remove(iv);
+        }
+        boolean deliver = (target == null || !target.isCanceled) && iv.getTag().toString().equals(holder.path);
+        if (!holder.isPreview) {
+            RequestMetrics metrics = target != null ? target.request.metrics : holder.metrics;
+            if (metrics != null) {
+                if (deliver) {
+                    metrics.deliveredViews++;
+                } else if (target == null || !target.isCanceled) {
+                    metrics.canceledViews++;  // cancelRequest取消的已经计过
+                }
+            }
+        }
+        if (deliver) {
+            DisplayedBitmap old = mDisplayedBitmaps.get(iv);
+            if (old == null || old.bitmap != holder.bitmap) {
+                if (holder.bitmap != null) {
+                    acquireBitmap(holder.bitmap);
+                    mDisplayedBitmaps.put(iv, new DisplayedBitmap(iv, holder.bitmap, mCollectedViews));
                 } else {
-                    bitmap = loadImageFromLocal(path, imageView);
+                    mDisplayedBitmaps.remove(iv);
+                }
+                iv.setImageBitmap(holder.bitmap);
+                if (old != null) {
+                    old.release();  // imageView换了图片，旧的bitmap可能可以复用了
                 }
-                addBitmapToLruCache(path, bitmap);
-                refreshBitmap(path, imageView, bitmap);
-                mBackstageThreadSemaphore.release();
             }
-        };
+            if (!holder.isPreview && holder.iLoadingComplete != null) {
+                holder.iLoadingComplete.onLoadFinished();
+            }
+        }
+        releaseBitmap(holder.bitmap);
     }
 
     /**
-     * 使用loadImageFromLocal本地加载图片的方式进行加载
-     *
-     * @param path
-     * @param imageView
-     * @return
+     * bitmap是否由加载器的引用计数管理（在内存缓存中、正在分发或者正在显示）
      */
-    private Bitmap loadImageFromLocal(final String path, final CustomImageView imageView) {
-        Bitmap bitmap = null;
-        // 1、获得图片需要显示的大小
-        ImageSizeUtil.ImageSize imageSize = ImageSizeUtil.getImageViewSize(imageView);
-        // 2、压缩图片
-        bitmap = decodeSampledBitmapFromPath(path, imageSize.width, imageSize.height);
-        return bitmap;
+    private boolean isManagedBitmap(Bitmap bitmap) {
+        synchronized (mBitmapRefs) {
+            return mBitmapRefs.containsKey(bitmap);
+        }
+    }
+
+    private void acquireBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mBitmapRefs) {
+            Integer count = mBitmapRefs.get(bitmap);
+            mBitmapRefs.put(bitmap, count == null ? 1 : count + 1);
+        }
     }
 
     /**
-     * 将图片加入LruCache
+     * 在内存缓存中查找并持有一次引用，用完后调用releaseBitmap。
+     * 查找和加引用在mBitmapRefs的锁中一起完成，中间不会被淘汰进复用池；
+     * 已经没有引用的bitmap可能正在被放进复用池，不能使用
      *
-     * @param path
-     * @param bitmap
+     * @param key
+     * @return 没有找到时返回null
      */
-    protected void addBitmapToLruCache(String path, Bitmap bitmap) {
-        if (getBitmapFromLruCache(path) == null) {
-            if (bitmap != null)
-                mLruCache.put(path, bitmap);
+    private Bitmap acquireFromLruCache(RequestKey key) {
+        synchronized (mBitmapRefs) {
+            Bitmap bitmap = mLruCache.get(key);
+            if (bitmap == null || !mBitmapRefs.containsKey(bitmap)) {
+                return null;
+            }
+            acquireBitmap(bitmap);
+            return bitmap;
         }
     }
 
     /**
-     * 根据图片需要显示的宽和高对图片进行压缩
+     * 引用计数降为0（不在LruCache中、没有在分发、没有被显示）时放入复用池
      *
-     * @param path
-     * @param width
-     * @param height
-     * @return
+     * @param bitmap
      */
-    protected Bitmap decodeSampledBitmapFromPath(String path, int width, int height) {
-        // 获得图片的宽和高，并不把图片加载到内存中
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(path, options);
-
-        options.inSampleSize = ImageSizeUtil.caculateInSampleSize(options, width, height);
-        // 使用获得到的InSampleSize再次解析图片
-        options.inJustDecodeBounds = false;
-        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
-
-        if (null == bitmap)
-            Log.d(TAG, "options.inSampleSize = " + options.inSampleSize + ", " + path);
-        return bitmap;
+    private void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mBitmapRefs) {
+            Integer count = mBitmapRefs.get(bitmap);
+            if (count == null) {
+                return;  // 不是加载器管理的bitmap
+            }
+            if (count > 1) {
+                mBitmapRefs.put(bitmap, count - 1);
+                return;
+            }
+            mBitmapRefs.remove(bitmap);
+        }
+        mBitmapPool.put(bitmap);
+        trimBitmapPool();
     }
 
     /**
-     * 获得缓存图片的地址
-     *
-     * @param context
-     * @param uniqueName
-     * @return
+     * LruCache和BitmapPool共用mMemoryBudget，复用池只能使用LruCache剩下的部分
      */
-    public File getDiskCacheDir(Context context, String uniqueName) {
-        String cachePath;
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            cachePath = context.getExternalCacheDir().getPath();
-        } else {
-            cachePath = context.getCacheDir().getPath();
-        }
-        return new File(cachePath + File.separator + uniqueName);
+    private void trimBitmapPool() {
+        mBitmapPool.trimToSize(Math.max(0, Math.min(mBitmapPool.maxSize(), mMemoryBudget - mLruCache.size())));
     }
 
     /**
-     * 根据path在缓存中获取bitmap
-     *
-     * @param key
-     * @return
+     * 释放已经被回收的imageView显示的bitmap，在主线程中调用
      */
-    private Bitmap getBitmapFromLruCache(String key) {
-        return mLruCache.get(key);
+    private void releaseCollectedViews() {
+        Reference<? extends CustomImageView> reference;
+        while ((reference = mCollectedViews.poll()) != null) {
+            ((DisplayedBitmap) reference).release();
+        }
     }
 
     /**
-     * 利用签名辅助类，将字符串字节数组
-     *
-     * @param str
-     * @return
+     * 第一次有Context时注册ComponentCallbacks2，之后按系统的内存压力调整缓存
      */
-    public String md5(String str) {
-        byte[] digest = null;
-        try {
-            MessageDigest md = MessageDigest.getInstance("md5");
+    private void registerMemoryCallbacks(Context context) {
+        if (isMemoryCallbacksRegistered) {
+            return;
+        }
+        synchronized (this) {
+            if (isMemoryCallbacksRegistered) {
+                return;
+            }
+            isMemoryCallbacksRegistered = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    /**
+     * 按ComponentCallbacks2的级别缩小内存缓存和复用池：
+     * 进入后台之后（TRIM_MEMORY_BACKGROUND及以上）全部清空、预算降到1/4，界面不可见时减半，
+     * 前台运行时按RUNNING_MODERATE/LOW/CRITICAL逐级缩小。
+     * 之后MEMORY_RECOVERY_DELAY内没有新的内存压力时，下次加载图片时恢复完整的预算。
+     * 已经注册了ComponentCallbacks2，一般不需要手动调用
+     *
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     */
+    public void trimMemory(int level) {
+        int budget;
+        boolean clear = false;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            budget = mMaxMemoryBudget / 4;  // 回到前台时还有一点缓存可用，恢复之前不会每张图都被马上淘汰
+            clear = true;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            budget = mMaxMemoryBudget / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            budget = mMaxMemoryBudget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            budget = mMaxMemoryBudget / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            budget = mMaxMemoryBudget * 3 / 4;
+        } else {
+            return;
+        }
+        mLastTrimTime = SystemClock.uptimeMillis();
+        // 更严重的压力之后紧接着的较轻的回调不放大预算
+        setMemoryBudget(Math.min(budget, mMemoryBudget), clear);
+        Log.d(TAG, "trimMemory(" + level + "), memory budget: " + mMemoryBudget);
+    }
+
+    /**
+     * 距离最后一次内存压力已经过了MEMORY_RECOVERY_DELAY，恢复完整的预算
+     */
+    private void restoreMemoryBudget() {
+        if (mMemoryBudget < mMaxMemoryBudget
+                && SystemClock.uptimeMillis() - mLastTrimTime >= MEMORY_RECOVERY_DELAY) {
+            setMemoryBudget(mMaxMemoryBudget, false);
+        }
+    }
+
+    private synchronized void setMemoryBudget(int budget, boolean clear) {
+        mMemoryBudget = budget;
+        if (clear) {
+            mLruCache.evictAll();
+            mBitmapPool.clear();
+        } else {
+            mLruCache.trimToSize(budget);
+        }
+        mBitmapPool.setMaxSize(budget / 4);
+        trimBitmapPool();
+        if (mEncodedCache != null) {
+            if (clear) {
+                mEncodedCache.evictAll();
+            } else {
+                mEncodedCache.trimToSize(getEncodedCacheBudget());
+            }
+        }
+    }
+
+    /**
+     * 编码缓存当前的上限，和mMemoryBudget按同样的比例缩小
+     */
+    private int getEncodedCacheBudget() {
+        return (int) ((long) mMaxEncodedCacheSize * mMemoryBudget / mMaxMemoryBudget);
+    }
+
+    /**
+     * 各级缓存分别的命中率
+     */
+    public CacheStats getCacheStats() {
+        return mCacheStats;
+    }
+
+    /**
+     * 当前的内存上限，内存紧张时小于配置的值
+     */
+    public int getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * 复用池，可以查看命中率
+     *
+     * @return
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * 取消imageView当前绑定的请求：还在排队的任务直接移出队列，正在下载或解码的任务会被中断。
+     * 同一个任务上还有其它imageView在等待时，只解除这个imageView的绑定。
+     * 需要在主线程中调用
+     *
+     * @param imageView
+     */
+    public void cancelRequest(CustomImageView imageView) {
+        ViewTarget target = mViewTargets.remove(imageView);
+        if (target == null) {
+            return;
+        }
+        target.isCanceled = true;
+        InFlightRequest request = target.request;
+        if (request.metrics != null) {
+            request.metrics.canceledViews++;
+        }
+        boolean cancelTask = false;
+        synchronized (mInFlightRequests) {
+            request.targets.remove(target);
+            if (request.targets.isEmpty() && !request.isPreload
+                    && mInFlightRequests.get(request.key) == request) {
+                mInFlightRequests.remove(request.key);
+                cancelTask = true;
+            }
+        }
+        if (cancelTask) {
+            request.scheduler.remove(request);
+            request.cancellationSignal.cancel();
+            reportCanceled(request);
+        } else {
+            updatePriority(request);  // 剩下的imageView可能都不在屏幕上
+        }
+    }
+
+    /**
+     * imageView是否有还在加载中的请求，需要在主线程中调用
+     *
+     * @param imageView
+     */
+    public boolean hasPendingRequest(CustomImageView imageView) {
+        return mViewTargets.containsKey(imageView);
+    }
+
+    /**
+     * imageView进入或者离开屏幕，CustomImageView在有加载中的请求时，于可见性变化、布局和滚动时自动调用，需要在主线程中调用。
+     * 不在屏幕上的imageView的请求降到PRIORITY_LOW，和预加载一起排在屏幕上的请求后面；回到屏幕上时恢复原来的优先级
+     *
+     * @param imageView
+     * @param onScreen
+     */
+    public void setOnScreen(CustomImageView imageView, boolean onScreen) {
+        ViewTarget target = mViewTargets.get(imageView);
+        if (target == null || target.isOnScreen == onScreen) {
+            return;
+        }
+        int oldPriority = target.getEffectivePriority();
+        target.isOnScreen = onScreen;
+        if (target.getEffectivePriority() != oldPriority) {
+            updatePriority(target.request);  // 预加载优先级的请求进出屏幕不影响任务的优先级
+        }
+    }
+
+    /**
+     * 按等待的imageView重新计算任务的优先级：取屏幕上的imageView请求的最高优先级，
+     * 都不在屏幕上（或者只剩预加载）时为PRIORITY_LOW。还在排队的任务在队列中重新排序
+     *
+     * @param request
+     */
+    private void updatePriority(InFlightRequest request) {
+        int priority = TaskScheduler.PRIORITY_LOW;
+        synchronized (mInFlightRequests) {
+            for (ViewTarget target : request.targets) {
+                priority = Math.max(priority, target.getEffectivePriority());
+            }
+        }
+        if (priority != request.getPriority()) {
+            request.scheduler.setPriority(request, priority);
+        }
+    }
+
+    /**
+     * 预加载即将显示的图片，不需要imageView。任务以PRIORITY_LOW按FIFO顺序排队，
+     * 屏幕上的请求总是先执行，队列满时也最先被丢弃。
+     * imageView之后以同样的path和大小加载时会直接复用预加载的任务或者结果
+     *
+     * @param context
+     * @param paths
+     * @param width       之后显示时的宽，和imageView的大小一致才能命中内存缓存
+     * @param height      之后显示时的高
+     * @param isFromNet
+     * @param memoryCache false时网络图片只下载到硬盘缓存，不解码；本地图片只有为true时才有意义
+     */
+    public void preload(Context context, List<String> paths, int width, int height, boolean isFromNet,
+            boolean memoryCache) {
+        preload(context, paths, width, height, isFromNet, memoryCache, null, null);
+    }
+
+    /**
+     * 预加载即将显示的图片。内存缓存的key包含缩放方式和变换，
+     * scaleType和options要和之后显示时的imageView、传给loadImage的options一致，否则只能命中硬盘缓存
+     *
+     * @param context
+     * @param paths
+     * @param width
+     * @param height
+     * @param isFromNet
+     * @param memoryCache
+     * @param scaleType   之后显示的imageView的缩放方式，为null时按完整放进控件解码
+     * @param options     之后loadImage使用的options，可以为null；优先级和出队策略不使用，预加载总是PRIORITY_LOW和FIFO
+     */
+    public void preload(Context context, List<String> paths, int width, int height, boolean isFromNet,
+            boolean memoryCache, ImageView.ScaleType scaleType, RequestOptions options) {
+        if (!memoryCache && !isFromNet) {
+            return;  // 本地图片不需要下载，只有放进内存缓存才有意义
+        }
+        registerMemoryCallbacks(context);
+        restoreMemoryBudget();
+        ImageSizeUtil.ImageSize imageSize = new ImageSizeUtil.ImageSize();
+        imageSize.width = width;
+        imageSize.height = height;
+        boolean centerCrop = isCenterCrop(scaleType, options);
+        List<Transformation> transformations = options != null
+                ? options.transformations : Collections.<Transformation>emptyList();
+        boolean allowRgb565 = (options == null || options.allowRgb565)
+                && !Transformations.requiresAlpha(transformations);
+        for (String path : paths) {
+            RequestKey cacheKey = getCacheKey(path, imageSize, options, centerCrop);
+            if (getBitmapFromLruCache(cacheKey) != null) {
+                continue;
+            }
+            InFlightRequest request;
+            boolean isNewRequest = false;
+            synchronized (mInFlightRequests) {
+                request = mInFlightRequests.get(cacheKey);
+                if (request == null) {
+                    request = new InFlightRequest(cacheKey, path, imageSize, transformations, centerCrop,
+                            context, isFromNet, false, allowRgb565, TaskScheduler.PRIORITY_LOW, QueueType.FIFO);
+                    request.decode = memoryCache;
+                    mInFlightRequests.put(cacheKey, request);
+                    isNewRequest = true;
+                } else if (memoryCache) {
+                    request.decode = true;
+                }
+                request.isPreload = true;
+            }
+            if (isNewRequest) {
+                submitRequest(request);
+            }
+        }
+    }
+
+    /**
+     * 取消所有还没有完成的预加载；已经有imageView在等待的任务不受影响
+     */
+    public void cancelPreloads() {
+        List<InFlightRequest> canceled = new ArrayList<>();
+        synchronized (mInFlightRequests) {
+            Iterator<InFlightRequest> iterator = mInFlightRequests.values().iterator();
+            while (iterator.hasNext()) {
+                InFlightRequest request = iterator.next();
+                if (!request.isPreload) {
+                    continue;
+                }
+                request.isPreload = false;
+                if (request.targets.isEmpty()) {
+                    iterator.remove();
+                    canceled.add(request);
+                }
+            }
+        }
+        for (InFlightRequest request : canceled) {
+            request.scheduler.remove(request);
+            request.cancellationSignal.cancel();
+            reportCanceled(request);
+        }
+    }
+
+    /**
+     * 任务在完成之前被取消，记录也回调一次
+     */
+    private void reportCanceled(InFlightRequest request) {
+        final RequestMetrics metrics = request.metrics;
+        if (metrics == null) {
+            return;
+        }
+        metrics.canceled = true;
+        metrics.postTime = System.nanoTime();
+        mUIHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reportMetrics(metrics);
+            }
+        });
+    }
+
+    /**
+     * 同一个path和目标大小已经有任务在加载时，只把imageView挂到这个任务上等待结果；
+     * 否则新建一个任务加入队列
+     *
+     * @param path
+     * @param imageView
+     * @param isFromNet
+     * @param options
+     */
+    private void enqueueRequest(String path, RequestKey cacheKey, ImageSizeUtil.ImageSize imageSize,
+            boolean centerCrop, CustomImageView imageView, boolean isFromNet, RequestOptions options,
+            ILoadingComplete iLoadingComplete) {
+        int priority = options != null ? options.priority : TaskScheduler.PRIORITY_NORMAL;
+        QueueType queueType = options != null && options.queueType != null ? options.queueType : mType;
+        List<Transformation> transformations = options != null
+                ? options.transformations : Collections.<Transformation>emptyList();
+        RequestKey requestKey = cacheKey;  // 缓存key已经包含了大小和变换
+
+        ViewTarget oldTarget = mViewTargets.get(imageView);
+        if (oldTarget != null) {
+            synchronized (mInFlightRequests) {
+                // 还是同一个请求并且还在加载中，不需要重复入队
+                if (mInFlightRequests.get(requestKey) == oldTarget.request) {
+                    if (oldTarget.request.metrics != null) {
+                        oldTarget.request.metrics.repeatedLoads++;
+                    }
+                    if (priority > oldTarget.priority) {
+                        oldTarget.priority = priority;
+                        updatePriority(oldTarget.request);
+                    }
+                    return;
+                }
+            }
+            cancelRequest(imageView);  // imageView换了path，旧的请求不再需要
+        }
+
+        ViewTarget target = new ViewTarget(imageView, iLoadingComplete, priority, imageView.isOnScreen());
+        InFlightRequest request;
+        boolean isNewRequest = false;
+        synchronized (mInFlightRequests) {
+            request = mInFlightRequests.get(requestKey);
+            if (request == null) {
+                boolean allowRgb565 = (options == null || options.allowRgb565)
+                        && !Transformations.requiresAlpha(transformations);
+                request = new InFlightRequest(requestKey, path, imageSize, transformations, centerCrop,
+                        imageView.getContext(), isFromNet, options != null && options.progressive,
+                        allowRgb565, target.getEffectivePriority(), queueType);
+                mInFlightRequests.put(requestKey, request);
+                isNewRequest = true;
+            }
+            target.request = request;
+            request.targets.add(target);
+            if (!isNewRequest) {
+                updatePriority(request);  // 新的imageView可能更紧急，提升整个任务的优先级
+            }
+        }
+        mViewTargets.put(imageView, target);
+        if (isNewRequest) {
+            submitRequest(request);
+        }
+    }
+
+    /**
+     * 提交新建的请求；暂停期间先留着，等resume()时再决定是否提交
+     *
+     * @param request
+     */
+    private void submitRequest(InFlightRequest request) {
+        synchronized (mPausedRequests) {
+            if (isPaused) {
+                mPausedRequests.add(request);
+                return;
+            }
+        }
+        request.scheduler.submit(request);
+    }
+
+    /**
+     * 暂停加载，一般在列表快速滑动时调用：内存缓存命中的图片照常显示，
+     * 新的读硬盘、下载和解码任务（包括预加载）先不提交，已经在执行的任务不受影响
+     */
+    public void pause() {
+        synchronized (mPausedRequests) {
+            isPaused = true;
+        }
+    }
+
+    /**
+     * 恢复加载，提交暂停期间积累的请求；滑动中已经被别的path重新绑定或者detach的imageView的请求直接丢弃
+     */
+    public void resume() {
+        List<InFlightRequest> paused;
+        synchronized (mPausedRequests) {
+            if (!isPaused) {
+                return;
+            }
+            isPaused = false;
+            paused = new ArrayList<>(mPausedRequests);
+            mPausedRequests.clear();
+        }
+        for (InFlightRequest request : paused) {
+            boolean needed = false;
+            synchronized (mInFlightRequests) {
+                if (mInFlightRequests.get(request.key) == request) {
+                    needed = request.isPreload || hasLiveTarget(request);
+                    if (!needed) {
+                        mInFlightRequests.remove(request.key);
+                    }
+                }
+            }
+            if (needed) {
+                request.scheduler.submit(request);
+            } else if (!request.cancellationSignal.isCanceled()) {
+                request.cancellationSignal.cancel();
+                reportCanceled(request);
+            }
+        }
+    }
+
+    public boolean isPaused() {
+        return isPaused;
+    }
+
+    /**
+     * 还有没被回收的imageView在等待这个请求，需要持有mInFlightRequests的锁
+     */
+    private static boolean hasLiveTarget(InFlightRequest request) {
+        for (ViewTarget target : request.targets) {
+            if (target.imageView.get() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 任务因为队列已满被丢弃：和加载失败一样移出正在加载的表并通知等待的imageView，
+     * 之后同样的请求可以重新入队。只有还在第一个阶段排队的任务会被丢弃，见InFlightRequest.isDroppable
+     *
+     * @param request
+     */
+    private void dropRequest(InFlightRequest request) {
+        Log.d(TAG, "request dropped: " + request.path);
+        finishRequest(request, null);
+    }
+
+    /**
+     * 任务完成，把结果分发给所有在等待的imageView
+     *
+     * @param request
+     * @param bitmap
+     */
+    private void finishRequest(InFlightRequest request, Bitmap bitmap) {
+        finishRequest(request, bitmap, true);
+    }
+
+    /**
+     * @param addToCache false时bitmap已经以别的key在内存缓存中
+     */
+    private void finishRequest(InFlightRequest request, Bitmap bitmap, boolean addToCache) {
+        List<ViewTarget> targets;
+        synchronized (mInFlightRequests) {
+            if (mInFlightRequests.get(request.key) == request) {
+                mInFlightRequests.remove(request.key);
+            }
+            targets = new ArrayList<>(request.targets);
+        }
+        // 放进LruCache之前先持有一次引用，分发给imageView之前即使马上被淘汰也不会进入复用池
+        acquireBitmap(bitmap);
+        if (addToCache) {
+            addBitmapToLruCache(request.key, bitmap);
+        }
+        final RequestMetrics metrics = request.metrics;
+        if (metrics != null) {
+            metrics.success = bitmap != null;
+        }
+        int lastLive = -1;
+        for (int i = 0; i < targets.size(); i++) {
+            if (targets.get(i).imageView.get() != null) {
+                lastLive = i;
+            }
+        }
+        boolean reported = lastLive >= 0;
+        try {
+            for (int i = 0; i <= lastLive; i++) {
+                ViewTarget target = targets.get(i);
+                CustomImageView imageView = target.imageView.get();
+                if (imageView != null) {
+                    // 记录跟着最后一个imageView的分发在主线程中回调，那时所有imageView的分发结果都已经计入
+                    acquireBitmap(bitmap);
+                    refreshBitmap(request.path, request.key, imageView, bitmap, target, target.iLoadingComplete,
+                            false, i == lastLive ? metrics : null);
+                } else if (i == lastLive) {
+                    reported = false;  // 刚刚被回收
+                }
+            }
+        } finally {
+            releaseBitmap(bitmap);
+        }
+        // 预加载或者imageView已经被回收；取消之后才跑完的任务已经在reportCanceled中回调过
+        if (metrics != null && !reported && !request.cancellationSignal.isCanceled()) {
+            metrics.postTime = System.nanoTime();
+            mUIHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reportMetrics(metrics);
+                }
+            });
+        }
+    }
+
+    /**
+     * 新任务的第一个阶段：开启了硬盘缓存的网络图片先查硬盘缓存，没有开启的直接下载，本地图片直接解码
+     *
+     * @param isFromNet
+     * @return
+     */
+    private int getFirstStage(boolean isFromNet) {
+        if (!isFromNet) {
+            return STAGE_DECODE;
+        }
+        return isDiskCacheEnable ? STAGE_DISK : STAGE_NETWORK;
+    }
+
+    private TaskScheduler getScheduler(int stage) {
+        if (stage == STAGE_DISK) {
+            return mDiskScheduler;
+        } else if (stage == STAGE_NETWORK) {
+            return mNetworkScheduler;
+        }
+        return mDecodeScheduler;
+    }
+
+    /**
+     * 交给下一个阶段的调度器排队，当前的工作线程可以去执行别的任务
+     *
+     * @param request
+     * @param stage
+     */
+    private void moveToStage(InFlightRequest request, int stage) {
+        TaskScheduler scheduler = getScheduler(stage);
+        request.stage = stage;
+        request.scheduler = scheduler;
+        if (request.metrics != null) {
+            request.metrics.markQueued(stage);
+        }
+        scheduler.submit(request);
+    }
+
+    /**
+     * 我们新建任务，说明在内存中没有找到缓存的bitmap；我们的任务就是去根据path加载压缩后的bitmap返回即可，然后加入LruCache，设置回调显示。
+     * 任务分成三个阶段，分别在自己的线程池中执行：
+     * 网络图片首先在硬盘缓存中找一下（硬盘中文件名为：根据path计算的RequestKey的hash），缓存在有效期内直接去解码；
+     * 没有缓存或者缓存过期时去下载或者重新验证，完成后再去解码；没有开启硬盘缓存时直接从网络解码；
+     * 如果不是网络图片：直接loadImageFromLocal本地加载图片的方式进行加载
+     * 经过上面，就获得了bitmap；然后加入addBitmapToLruCache，refreashBitmap回调给所有等待这个请求的imageView
+     *
+     * @param request
+     */
+    private void runRequest(InFlightRequest request) {
+        if (request.cancellationSignal.isCanceled()) {
+            return;
+        }
+        int stage = request.stage;  // 执行过程中可能已经交给了下一个阶段
+        RequestMetrics metrics = request.metrics;
+        if (metrics != null) {
+            metrics.markStarted(stage);
+        }
+        beginTrace(STAGE_TRACE_NAMES[stage]);
+        try {
+            switch (stage) {
+                case STAGE_DISK:
+                    runDiskStage(request);
+                    break;
+                case STAGE_NETWORK:
+                    runNetworkStage(request);
+                    break;
+                default:
+                    runDecodeStage(request);
+                    break;
+            }
+        } catch (Throwable e) {
+            // 按失败结束，否则任务一直留在mInFlightRequests中，之后同样的请求都会挂在它上面等不到结果
+            Log.e(TAG, "request failed: " + request.path, e);
+            if (!request.cancellationSignal.isCanceled()) {
+                finishRequest(request, null);
+            }
+        } finally {
+            endTrace();
+            if (metrics != null) {
+                metrics.markFinished(stage);
+            }
+        }
+    }
+
+    /**
+     * 查硬盘缓存：在有效期内直接去解码，否则记下过期的条目和缓存信息去网络阶段
+     *
+     * @param request
+     */
+    private void runDiskStage(InFlightRequest request) {
+        if (!request.centerCrop && !request.cacheVariantMissed
+                && hasCacheVariant(request.path, request.imageSize)) {
+            // 内存中有更大的版本，直接缩小；需要覆盖控件时要看实际的像素够不够，留到解码阶段再判断
+            request.usingCacheVariant = true;
+            moveToStage(request, STAGE_DECODE);
+            return;
+        }
+        if (mEncodedCache != null) {
+            // 编码后的字节还在内存中，直接解码，不读硬盘缓存的文件
+            String key = request.key.getDiskKey();
+            EncodedImage encoded = mEncodedCache.get(key);
+            if (encoded != null && encoded.isFresh(System.currentTimeMillis())) {
+                mCacheStats.hit(CacheStats.TIER_ENCODED);
+                request.encoded = ByteBuffer.wrap(encoded.data);
+                setSource(request, RequestMetrics.Source.ENCODED_MEMORY);
+                finishFetch(request);
+                return;
+            }
+            if (encoded != null) {
+                // 过期了，要走硬盘缓存去重新验证；不再占着编码缓存，验证之后会重新放进来
+                mEncodedCache.remove(key);
+                mCacheStats.stale(CacheStats.TIER_ENCODED);
+            } else {
+                mCacheStats.miss(CacheStats.TIER_ENCODED);
+            }
+        }
+        PackedBlobStore packedStore = getPackedStore(request.context);
+        if (packedStore != null) {
+            try {
+                PackedBlobStore.Blob blob = packedStore.get(request.key.getDiskKey());
+                if (blob != null) {  // 小图片在合并存储中，直接从映射的内存解码
+                    request.encoded = blob.data;
+                    request.cachedHeaders = blob.headers;
+                    if (blob.headers.isFresh(System.currentTimeMillis())) {
+                        mCacheStats.hit(CacheStats.TIER_DISK);
+                        setSource(request, RequestMetrics.Source.DISK);
+                        fillEncodedCache(request);
+                        finishFetch(request);
+                    } else {
+                        mCacheStats.stale(CacheStats.TIER_DISK);  // 要去网络重新验证，不算命中
+                        moveToStage(request, STAGE_NETWORK);
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        DiskLruCache diskCache = getDiskLruCache(request.context);
+        if (diskCache == null) {
+            moveToStage(request, STAGE_NETWORK);
+            return;
+        }
+        try {
+            DiskLruCache.Snapshot snapshot = diskCache.get(request.key.getDiskKey());
+            if (snapshot == null) {
+                mCacheStats.miss(CacheStats.TIER_DISK);
+            } else {  // 如果本地已经缓存了该文件
+                request.snapshot = snapshot;
+                request.file = snapshot.getFile(DISK_CACHE_INDEX).getAbsolutePath();
+                request.cachedHeaders = CacheHeaders.read(snapshot.getFile(DISK_CACHE_META_INDEX));
+                if (request.cachedHeaders.isFresh(System.currentTimeMillis())) {
+                    mCacheStats.hit(CacheStats.TIER_DISK);
+                    setSource(request, RequestMetrics.Source.DISK);
+                    fillEncodedCache(request);
+                    finishFetch(request);
+                    return;
+                }
+                mCacheStats.stale(CacheStats.TIER_DISK);  // 要去网络重新验证，不算命中
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        moveToStage(request, STAGE_NETWORK);
+    }
+
+    /**
+     * 下载到硬盘缓存，或者带上ETag/Last-Modified重新验证过期的条目；没有开启硬盘缓存时直接从网络解码
+     *
+     * @param request
+     */
+    private void runNetworkStage(InFlightRequest request) {
+        String path = request.path;
+        ImageSizeUtil.ImageSize imageSize = request.imageSize;
+        CancellationSignal signal = request.cancellationSignal;
+        DiskLruCache diskCache = isDiskCacheEnable ? getDiskLruCache(request.context) : null;
+        if (diskCache == null) {
+            if (shouldDecode(request)) {  // 直接从网络加载到imageView，数据流只能读一次，只好在这里解码
+                request.decoded = DownloadImgUtils.downloadImageByUrl(path, imageSize.width, imageSize.height,
+                        request.centerCrop, request.allowRgb565, signal, request.metrics);
+                setSource(request, RequestMetrics.Source.NETWORK);
+                if (request.decoded == null && !signal.isCanceled())
+                    Log.d(TAG, "download image failed to memory(" + path + ")");
+            }
+            finishFetch(request);
+            return;
+        }
+        String key = request.key.getDiskKey();
+        DiskLruCache.Editor editor = null;
+        try {
+            synchronized (mDiskWriteWaiters) {
+                editor = diskCache.edit(key);
+                if (editor != null) {
+                    mDiskWriteWaiters.put(key, new ArrayList<InFlightRequest>());
+                } else if (mDiskWriteWaiters.containsKey(key)) {
+                    // 同一个key正在被别的请求下载，等它提交后重新查硬盘缓存
+                    mDiskWriteWaiters.get(key).add(request);
+                    return;
+                }
+            }
+            if (editor != null) {
+                // 没有缓存时下载；过期时做条件请求，304只更新缓存信息；网络失败时继续使用过期的文件
+                if (downloadToDiskCache(editor, request.cachedHeaders, request.encoded, path, signal,
+                        request.metrics)) {
+                    setSource(request, RequestMetrics.Source.NETWORK);
+                } else if (request.file != null || request.encoded != null) {
+                    setSource(request, RequestMetrics.Source.DISK);  // 重新验证失败，使用过期的文件
+                }
+                DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                if (snapshot != null) {
+                    request.snapshot = snapshot;
+                    request.file = snapshot.getFile(DISK_CACHE_INDEX).getAbsolutePath();
+                    request.encoded = null;
+                    if (mEncodedCache != null) {  // 和字节一起放进编码缓存
+                        request.cachedHeaders = CacheHeaders.read(snapshot.getFile(DISK_CACHE_META_INDEX));
+                    }
+                    moveToPackedStore(request, diskCache, snapshot);
+                } else {
+                    request.snapshot = null;
+                    request.file = null;
+                }
+            } else if (request.file == null && request.encoded == null && shouldDecode(request)) {
+                // 条目被不经过这里的编辑占着（不应该发生），直接从网络加载；有过期的文件时先使用它
+                request.decoded = DownloadImgUtils.downloadImageByUrl(path, imageSize.width, imageSize.height,
+                        request.centerCrop, request.allowRgb565, signal, request.metrics);
+                setSource(request, RequestMetrics.Source.NETWORK);
+            } else {
+                setSource(request, RequestMetrics.Source.DISK);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (editor != null) {
+                resumeDiskWriteWaiters(key);
+            }
+        }
+        if (request.file == null && request.decoded == null && request.encoded == null && !signal.isCanceled())
+            Log.d(TAG, "download image failed to diskcache(" + path + ")");
+        if (!signal.isCanceled()) {
+            fillEncodedCache(request);  // 刚下载或者验证过的文件还在页缓存中，在这里读进来
+        }
+        finishFetch(request);
+    }
+
+    /**
+     * 写入硬盘缓存的编辑已经提交或者放弃，等待它的请求回到硬盘缓存阶段：提交成功时直接命中，
+     * 失败时其中一个重新拿到Editor去下载
+     *
+     * @param key
+     */
+    private void resumeDiskWriteWaiters(String key) {
+        List<InFlightRequest> waiters;
+        synchronized (mDiskWriteWaiters) {
+            waiters = mDiskWriteWaiters.remove(key);
+        }
+        if (waiters == null) {
+            return;
+        }
+        for (InFlightRequest waiter : waiters) {
+            if (!waiter.cancellationSignal.isCanceled()) {
+                moveToStage(waiter, STAGE_DISK);
+            }
+        }
+    }
+
+    /**
+     * 数据已经准备好：需要解码时交给解码阶段，只预加载到硬盘缓存的任务到这里就结束了
+     *
+     * @param request
+     */
+    private void finishFetch(InFlightRequest request) {
+        if (request.cancellationSignal.isCanceled()) {
+            mBitmapPool.put(request.decoded);
+            request.decoded = null;
+            request.encoded = null;
+            return;
+        }
+        if (shouldDecode(request)) {
+            moveToStage(request, STAGE_DECODE);
+        } else {
+            finishRequest(request, null);
+        }
+    }
+
+    /**
+     * 解码和变换，只占用CPU；硬盘缓存的文件已经在前面的阶段准备好
+     *
+     * @param request
+     */
+    private void runDecodeStage(InFlightRequest request) {
+        CancellationSignal signal = request.cancellationSignal;
+        String path = request.path;
+        ImageSizeUtil.ImageSize imageSize = request.imageSize;
+        boolean centerCrop = request.centerCrop;
+        Bitmap bitmap = request.decoded;
+        request.decoded = null;
+        boolean shared = false;  // bitmap就是内存缓存中的版本，已经持有一次引用
+        if (bitmap == null) {
+            // 内存中有更大的版本时直接缩小，不再读硬盘或者网络
+            bitmap = getScaledCacheVariant(path, imageSize, centerCrop, request.allowRgb565);
+            if (bitmap != null) {
+                Log.d(TAG, "scaled from a larger cached variant: " + path);
+                shared = isManagedBitmap(bitmap);
+                setSource(request, RequestMetrics.Source.MEMORY_VARIANT);
+            } else if (request.usingCacheVariant) {
+                // 跳过了硬盘缓存，但内存中的版本在这之前已经被淘汰了，回到第一个阶段重新读硬盘缓存或者下载
+                request.usingCacheVariant = false;
+                request.cacheVariantMissed = true;
+                moveToStage(request, request.firstStage);
+                return;
+            }
+        }
+        if (bitmap != null) {
+            // 已经有结果了
+        } else if (request.isFromNet) {
+            ByteBuffer data = request.encoded;  // 编码缓存开启时已经在前面的阶段读进了内存
+            request.encoded = null;
+            if (data != null || request.file != null) {
+                deliverPreview(request, request.file, data);
+                bitmap = decodeSampledBitmap(request.file, data, imageSize.width, imageSize.height, centerCrop,
+                        request.allowRgb565, signal);
+                if (bitmap == null && !signal.isCanceled()) {
+                    DiskLruCache.Snapshot snapshot = request.snapshot;
+                    if (snapshot != null && !snapshot.isCurrent() && !request.snapshotExpired) {
+                        // 解码之前条目已经被淘汰或者替换，文件并没有损坏：回到第一个阶段重新读硬盘缓存，
+                        // 已经不在了就重新下载。只重试一次
+                        request.snapshotExpired = true;
+                        request.snapshot = null;
+                        request.file = null;
+                        request.cachedHeaders = null;
+                        moveToStage(request, request.firstStage);
+                        return;
+                    }
+                    Log.d(TAG, "load image failed from local: " + path);
+                    removeFromDiskCache(request.context, request.key);  // 文件已损坏，删掉下次重新下载
+                }
+            }
+        } else if (path.startsWith(SCHEME_RES)) {
+            setSource(request, RequestMetrics.Source.LOCAL);
+            bitmap = decodeSampledBitmapFromResource(request.context.getResources(),
+                    Integer.parseInt(path.substring(SCHEME_RES.length())),
+                    imageSize.width, imageSize.height, centerCrop, request.allowRgb565);
+        } else {
+            setSource(request, RequestMetrics.Source.LOCAL);
+            bitmap = loadImageFromLocal(path, imageSize, centerCrop, request.allowRgb565, signal);
+        }
+        if (signal.isCanceled()) {
+            Log.d(TAG, "request canceled: " + path);
+            if (shared) {
+                releaseBitmap(bitmap);
+            } else {
+                mBitmapPool.put(bitmap);
+            }
+            return;
+        }
+        RequestMetrics metrics = request.metrics;
+        if (metrics != null && bitmap != null) {
+            metrics.decodedBytes = BitmapPool.getBitmapByteSize(bitmap);
+            metrics.bytesPerPixel = BitmapPool.getBytesPerPixel(bitmap.getConfig());
+        }
+        if (bitmap != null && !request.transformations.isEmpty()) {
+            // 变换只在这里做一次，缓存和分发的都是变换后的结果
+            long start = metrics != null ? System.nanoTime() : 0;
+            beginTrace(TAG + ":transform");
+            Bitmap transformed;
+            try {
+                transformed = Transformations.apply(request.transformations, mBitmapPool, bitmap,
+                        imageSize.width, imageSize.height);
+            } finally {
+                endTrace();
+            }
+            if (metrics != null) {
+                metrics.transformNanos = System.nanoTime() - start;
+            }
+            if (transformed != bitmap) {
+                if (shared) {
+                    releaseBitmap(bitmap);
+                    shared = false;
+                } else {
+                    mBitmapPool.put(bitmap);
+                }
+            }
+            bitmap = transformed;
+        }
+        if (shared) {
+            // 直接分发缓存中的版本，不用另一个key再缓存一份，LruCache不会把同一块内存算两次
+            try {
+                finishRequest(request, bitmap, false);
+            } finally {
+                releaseBitmap(bitmap);
+            }
+        } else {
+            finishRequest(request, bitmap);
+        }
+    }
+
+    private static void setSource(InFlightRequest request, RequestMetrics.Source source) {
+        if (request.metrics != null) {
+            request.metrics.source = source;
+        }
+    }
+
+    private void removeFromDiskCache(Context context, RequestKey key) {
+        if (mEncodedCache != null) {
+            mEncodedCache.remove(key.getDiskKey());
+        }
+        PackedBlobStore packedStore = getPackedStore(context);
+        DiskLruCache diskCache = getDiskLruCache(context);
+        try {
+            if (packedStore != null) {
+                packedStore.remove(key.getDiskKey());
+            }
+            if (diskCache != null) {
+                diskCache.remove(key.getDiskKey());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 不超过mPackedEntrySize的图片从硬盘缓存移到合并存储，不再单独占用一个文件；
+     * 移动成功后request改为使用合并存储中映射的字节
+     *
+     * @param request
+     * @param diskCache
+     * @param snapshot  刚下载或者重新验证过的条目
+     * @throws IOException
+     */
+    private void moveToPackedStore(InFlightRequest request, DiskLruCache diskCache, DiskLruCache.Snapshot snapshot)
+            throws IOException {
+        PackedBlobStore packedStore = getPackedStore(request.context);
+        File file = snapshot.getFile(DISK_CACHE_INDEX);
+        if (packedStore == null || file.length() > packedStore.getMaxEntrySize()) {
+            return;
+        }
+        String key = request.key.getDiskKey();
+        CacheHeaders headers = CacheHeaders.read(snapshot.getFile(DISK_CACHE_META_INDEX));
+        if (!packedStore.put(key, file, headers)) {
+            return;
+        }
+        PackedBlobStore.Blob blob = packedStore.get(key);
+        if (blob != null) {  // 合并存储很小时刚写入的条目可能已经被淘汰，保留硬盘缓存中的文件
+            diskCache.remove(key);
+            request.snapshot = null;
+            request.file = null;
+            request.encoded = blob.data;
+            request.cachedHeaders = blob.headers;
+        }
+    }
+
+    /**
+     * 从网络下载到硬盘缓存的条目中，图片和缓存信息一起提交，失败则放弃这次编辑。
+     * cached不为null时做条件请求，304时只更新缓存信息，图片文件保持不变
+     *
+     * @param editor
+     * @param cached 条目中已有的缓存信息，没有缓存时为null
+     * @param stale  过期的条目在合并存储中时是它的字节，304时写进硬盘缓存的条目；否则为null
+     * @param path
+     * @param signal
+     * @return 是否下载或者验证成功
+     * @throws IOException
+     */
+    private boolean downloadToDiskCache(DiskLruCache.Editor editor, CacheHeaders cached, ByteBuffer stale,
+            String path, CancellationSignal signal, RequestMetrics metrics) throws IOException {
+        try {
+            // 需要从网络下载
+            CacheHeaders headers = DownloadImgUtils.fetchImageByUrl(path, editor.getFile(DISK_CACHE_INDEX),
+                    cached, signal, metrics);
+            if (headers != null) {
+                headers.write(editor.getFile(DISK_CACHE_META_INDEX));
+                if (headers.isNotModified() && stale != null) {
+                    writeToFile(stale, editor.getFile(DISK_CACHE_INDEX));  // 合并存储中的条目没有单独的文件
+                }
+                editor.commit();
+                if (headers.isNotModified()) {
+                    Log.d(TAG, "revalidated, not modified: " + path);
+                    if (metrics != null) {
+                        metrics.revalidated = true;
+                    }
+                }
+                return true;
+            }
+            editor.abort();
+            return false;
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    private static void writeToFile(ByteBuffer data, File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel channel = fos.getChannel();
+            ByteBuffer buffer = data.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * 渐进式加载的第一阶段：用很大的inSampleSize解码一张缩略图，单独缓存，先分发给等待的imageView
+     *
+     * @param request
+     * @param file    已经下载好的缓存文件，缩略图和完整的图片共用一次下载
+     */
+    private void deliverPreview(InFlightRequest request, String file, ByteBuffer data) {
+        if (!request.progressive || request.cancellationSignal.isCanceled()) {
+            return;
+        }
+        List<ViewTarget> targets;
+        synchronized (mInFlightRequests) {
+            targets = new ArrayList<>(request.targets);
+        }
+        if (targets.isEmpty()) {
+            return;  // 没有imageView在等待，直接解码完整的图片
+        }
+        RequestKey previewKey = request.key.preview();
+        Bitmap preview = acquireFromLruCache(previewKey);
+        if (preview == null) {
+            ImageSizeUtil.ImageSize imageSize = request.imageSize;
+            preview = decodePreview(file, data, imageSize.width, imageSize.height, request.centerCrop,
+                    request.allowRgb565);
+            if (preview == null || request.cancellationSignal.isCanceled()) {
+                mBitmapPool.put(preview);
+                return;
+            }
+            if (!request.transformations.isEmpty()) {
+                Bitmap transformed = Transformations.apply(request.transformations, mBitmapPool, preview,
+                        imageSize.width, imageSize.height);
+                if (transformed != preview) {
+                    mBitmapPool.put(preview);
+                }
+                preview = transformed;
+            }
+            acquireBitmap(preview);  // 放进LruCache之前先持有，分发之前不会被淘汰进复用池
+            addBitmapToLruCache(previewKey, preview);
+        }
+        try {
+            for (ViewTarget target : targets) {
+                CustomImageView imageView = target.imageView.get();
+                if (imageView != null) {
+                    acquireBitmap(preview);
+                    refreshBitmap(request.path, previewKey, imageView, preview, target, null, true, null);
+                }
+            }
+        } finally {
+            releaseBitmap(preview);
+        }
+    }
+
+    /**
+     * 解码缩略图：在正常的inSampleSize基础上再缩小PREVIEW_SAMPLE_SIZE倍
+     *
+     * @param path
+     * @param width
+     * @param height
+     * @param allowRgb565
+     * @return
+     */
+    protected Bitmap decodePreviewFromPath(String path, int width, int height, boolean allowRgb565) {
+        return decodePreview(path, null, width, height, false, allowRgb565);
+    }
+
+    private Bitmap decodePreview(String path, ByteBuffer data, int width, int height, boolean centerCrop,
+            boolean allowRgb565) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(path, data, options);
+        ImageSizeUtil.planConfig(options, allowRgb565);
+        options.inSampleSize = ImageSizeUtil.caculateInSampleSize(options, width, height, centerCrop)
+                * PREVIEW_SAMPLE_SIZE;
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = getReusableBitmap(options);
+        try {
+            return decode(path, data, options);
+        } catch (IllegalArgumentException e) {
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decode(path, data, options);
+        }
+    }
+
+    /**
+     * data不为null时从内存中的字节解码，否则从文件解码；合并存储映射的ByteBuffer没有数组，通过流读取，不复制
+     */
+    private static Bitmap decode(String path, ByteBuffer data, BitmapFactory.Options options) {
+        if (data == null) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        if (data.hasArray()) {
+            return BitmapFactory.decodeByteArray(data.array(), data.arrayOffset() + data.position(),
+                    data.remaining(), options);
+        }
+        return BitmapFactory.decodeStream(new PackedBlobStore.ByteBufferInputStream(data), null, options);
+    }
+
+    /**
+     * 在硬盘缓存和网络阶段把图片的字节放进编码缓存，request改为使用内存中的字节，解码线程中不再读文件。
+     * 合并存储中的字节已经映射在内存中，复制一份；硬盘缓存的文件在这里读进来。
+     * 没有开启编码缓存、不需要解码、已经过期、图片太大或者读取失败时保持不变
+     *
+     * @param request
+     */
+    private void fillEncodedCache(InFlightRequest request) {
+        if (mEncodedCache == null || !shouldDecode(request)) {
+            return;
+        }
+        CacheHeaders headers = request.cachedHeaders;
+        if (headers != null && !headers.isFresh(System.currentTimeMillis())) {
+            return;  // 重新验证失败时使用的过期文件，放进去下次也只会当作没有命中
+        }
+        int budget = getEncodedCacheBudget();
+        int maxLength = budget / 8;  // 单张图片太大的话会挤掉很多条目
+        ByteBuffer encoded = request.encoded;
+        byte[] data;
+        if (encoded != null) {
+            if (encoded.remaining() > maxLength) {
+                return;
+            }
+            data = new byte[encoded.remaining()];
+            encoded.duplicate().get(data);
+        } else if (request.file != null) {
+            data = readFile(new File(request.file), maxLength);
+            if (data == null) {
+                return;
+            }
+        } else {
+            return;
+        }
+        mEncodedCache.put(request.key.getDiskKey(), new EncodedImage(data, headers));
+        if (mEncodedCache.size() > budget) {  // 内存紧张时LruCache的maxSize仍然是配置的值
+            mEncodedCache.trimToSize(budget);
+        }
+        request.encoded = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * 读取整个文件，文件为空、超过maxLength或者读取失败时返回null
+     */
+    private static byte[] readFile(File file, int maxLength) {
+        long length = file.length();
+        if (length <= 0 || length > maxLength) {
+            return null;
+        }
+        byte[] data = new byte[(int) length];
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            raf.readFully(data);
+            return data;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            DiskLruCache.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * 任务是否需要解码：有imageView在等待，或者预加载要求放进内存缓存
+     *
+     * @param request
+     * @return
+     */
+    private boolean shouldDecode(InFlightRequest request) {
+        synchronized (mInFlightRequests) {
+            return request.decode || !request.targets.isEmpty();
+        }
+    }
+
+    /**
+     * 使用loadImageFromLocal本地加载图片的方式进行加载
+     *
+     * @param path
+     * @param imageSize 图片需要显示的大小
+     * @param centerCrop
+     * @param allowRgb565
+     * @param signal
+     * @return
+     */
+    private Bitmap loadImageFromLocal(final String path, final ImageSizeUtil.ImageSize imageSize,
+            boolean centerCrop, boolean allowRgb565, CancellationSignal signal) {
+        Bitmap bitmap = null;
+        // 压缩图片
+        bitmap = decodeSampledBitmapFromPath(path, imageSize.width, imageSize.height, centerCrop,
+                allowRgb565, signal);
+        return bitmap;
+    }
+
+    /**
+     * 将图片加入LruCache
+     *
+     * @param key
+     * @param bitmap
+     */
+    protected void addBitmapToLruCache(RequestKey key, Bitmap bitmap) {
+        if (getBitmapFromLruCache(key) == null) {
+            if (bitmap != null) {
+                acquireBitmap(bitmap);  // LruCache持有一次引用，entryRemoved中释放
+                addCacheVariant(key);
+                mLruCache.put(key, bitmap);
+                int budget = mMemoryBudget;
+                if (mLruCache.size() > budget) {  // 内存紧张时LruCache的maxSize仍然是配置的值
+                    mLruCache.trimToSize(budget);
+                }
+                trimBitmapPool();
+            }
+        }
+    }
+
+    /**
+     * 记录未变换的缓存版本，变换后的版本不能再按比例缩小，不记录
+     *
+     * @param cacheKey
+     */
+    private void addCacheVariant(RequestKey cacheKey) {
+        if (!cacheKey.isScalable()) {
+            return;
+        }
+        synchronized (mCacheVariants) {
+            List<RequestKey> variants = mCacheVariants.get(cacheKey.path);
+            if (variants == null) {
+                variants = new ArrayList<>(2);
+                mCacheVariants.put(cacheKey.path, variants);
+            }
+            variants.add(cacheKey);
+        }
+    }
+
+    private void removeCacheVariant(RequestKey cacheKey) {
+        if (!cacheKey.isScalable()) {
+            return;
+        }
+        synchronized (mCacheVariants) {
+            List<RequestKey> variants = mCacheVariants.get(cacheKey.path);
+            if (variants == null) {
+                return;
+            }
+            variants.remove(cacheKey);
+            if (variants.isEmpty()) {
+                mCacheVariants.remove(cacheKey.path);
+            }
+        }
+    }
+
+    /**
+     * 内存缓存中有没有不小于imageSize的未变换版本
+     */
+    private boolean hasCacheVariant(String path, ImageSizeUtil.ImageSize imageSize) {
+        return findCacheVariant(path, imageSize) != null;
+    }
+
+    /**
+     * 不小于imageSize的未变换版本中最小的一个的key，没有则返回null
+     */
+    private RequestKey findCacheVariant(String path, ImageSizeUtil.ImageSize imageSize) {
+        RequestKey key = null;
+        synchronized (mCacheVariants) {
+            List<RequestKey> variants = mCacheVariants.get(path);
+            if (variants == null) {
+                return null;
+            }
+            long bestArea = Long.MAX_VALUE;
+            for (RequestKey variant : variants) {
+                long area = (long) variant.width * variant.height;
+                if (variant.width >= imageSize.width && variant.height >= imageSize.height
+                        && area < bestArea) {
+                    key = variant;
+                    bestArea = area;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * 在内存缓存中找一个不小于imageSize的未变换版本，按比例缩小成新的bitmap；没有则返回null。
+     * 缩小的结果是单独的一份内存，LruCache按它实际的大小计算；
+     * 不需要缩放时直接返回缓存中的版本，已经为调用方持有一次引用（isManagedBitmap为true），用完后releaseBitmap
+     *
+     * @param path
+     * @param imageSize
+     * @param centerCrop  需要覆盖imageSize；缓存的版本是完整放进它的控件解码的，像素不够时返回null
+     * @param allowRgb565 false时不使用RGB_565的版本，它的色带放大到ARGB_8888也还在
+     * @return
+     */
+    private Bitmap getScaledCacheVariant(String path, ImageSizeUtil.ImageSize imageSize, boolean centerCrop,
+            boolean allowRgb565) {
+        RequestKey key = findCacheVariant(path, imageSize);
+        if (key == null) {
+            return null;
+        }
+        Bitmap source = acquireFromLruCache(key);  // 持有引用期间不会被淘汰进复用池
+        if (source == null) {
+            return null;
+        }
+        boolean keepRef = false;
+        try {
+            if (!allowRgb565 && source.getConfig() == Bitmap.Config.RGB_565) {
+                return null;
+            }
+            float scale = ImageSizeUtil.getScale(source.getWidth(), source.getHeight(),
+                    imageSize.width, imageSize.height, centerCrop);
+            if (scale > 1f) {
+                if (centerCrop) {
+                    return null;  // 放大会变模糊，重新解码
+                }
+                scale = 1f;  // 原图本来就比控件小
+            }
+            if (scale >= 1f - ImageSizeUtil.SCALE_TOLERANCE) {
+                keepRef = true;
+                return source;  // 大小已经合适，不复制像素
+            }
+            // 缩小的结果和原来的版本格式一致，不透明的RGB_565版本缩小后仍然是RGB_565
+            Bitmap.Config config = allowRgb565 && source.getConfig() == Bitmap.Config.RGB_565
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            return scaleBitmap(source, scale, config);
+        } finally {
+            if (!keepRef) {
+                releaseBitmap(source);
+            }
+        }
+    }
+
+    /**
+     * 把source按scale缩放到复用池中取出的bitmap上，source保持不变
+     */
+    private Bitmap scaleBitmap(Bitmap source, float scale, Bitmap.Config config) {
+        int width = Math.max(1, Math.round(source.getWidth() * scale));
+        int height = Math.max(1, Math.round(source.getHeight() * scale));
+        Bitmap result = Transformations.obtainBitmap(mBitmapPool, width, height, config);
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) width / source.getWidth(), (float) height / source.getHeight());
+        new Canvas(result).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return result;
+    }
+
+    /**
+     * 根据图片需要显示的宽和高对图片进行压缩
+     *
+     * @param path
+     * @param width
+     * @param height
+     * @return
+     */
+    protected Bitmap decodeSampledBitmapFromPath(String path, int width, int height) {
+        return decodeSampledBitmapFromPath(path, width, height, false, null);
+    }
+
+    /**
+     * 根据图片需要显示的宽和高对图片进行压缩，signal被取消时中止解码并返回null
+     *
+     * @param path
+     * @param width
+     * @param height
+     * @param centerCrop 结果会被居中裁剪到width x height，超大的图片只解码中间可见的区域
+     * @param signal
+     * @return
+     */
+    protected Bitmap decodeSampledBitmapFromPath(String path, int width, int height, boolean centerCrop,
+            CancellationSignal signal) {
+        return decodeSampledBitmapFromPath(path, width, height, centerCrop, false, signal);
+    }
+
+    /**
+     * 同上，allowRgb565为true时不透明的图片用RGB_565解码
+     */
+    protected Bitmap decodeSampledBitmapFromPath(String path, int width, int height, boolean centerCrop,
+            boolean allowRgb565, CancellationSignal signal) {
+        return decodeSampledBitmap(path, null, width, height, centerCrop, allowRgb565, signal);
+    }
+
+    /**
+     * 从内存中的编码字节解码，其它和decodeSampledBitmapFromPath一样
+     */
+    protected Bitmap decodeSampledBitmapFromBytes(byte[] data, int width, int height, boolean centerCrop,
+            boolean allowRgb565, CancellationSignal signal) {
+        return decodeSampledBitmap(null, ByteBuffer.wrap(data), width, height, centerCrop, allowRgb565, signal);
+    }
+
+    private Bitmap decodeSampledBitmap(String path, ByteBuffer data, int width, int height, boolean centerCrop,
+            boolean allowRgb565, CancellationSignal signal) {
+        // 获得图片的宽和高，并不把图片加载到内存中
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(path, data, options);
+        ImageSizeUtil.planConfig(options, allowRgb565);
+        if (centerCrop && ImageSizeUtil.shouldDecodeRegion(options)) {
+            return decodeRegion(path, data, options, width, height, signal);
+        }
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    options.requestCancelDecode();
+                }
+            });
+        }
+
+        // 2的幂采样加上解码时的密度缩放，直接得到需要的大小
+        ImageSizeUtil.planDecode(options, width, height, centerCrop);
+        // 使用获得到的InSampleSize再次解析图片
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;  // 可变的bitmap以后才能被复用
+        options.inBitmap = getReusableBitmap(options);
+        Bitmap bitmap;
+        try {
+            bitmap = decode(path, data, options);
+        } catch (IllegalArgumentException e) {
+            // 复用的bitmap不满足条件，放回池中，重新分配内存解码
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decode(path, data, options);
+        }
+        if (bitmap == null && options.inBitmap != null) {
+            mBitmapPool.put(options.inBitmap);  // 解码失败，复用的bitmap还给复用池
+        }
+        if (signal != null) {
+            signal.setOnCancelListener(null);
+            if (signal.isCanceled()) {
+                return null;
+            }
+        }
+
+        if (null == bitmap)
+            Log.d(TAG, "options.inSampleSize = " + options.inSampleSize + ", " + path);
+        ImageSizeUtil.restoreDensity(bitmap, options);
+        return bitmap;
+    }
+
+    /**
+     * 用BitmapRegionDecoder只解码居中裁剪后可见的区域，采样率按区域的大小计算。
+     * 区域解码不支持inDensity/inTargetDensity，2的幂采样之后剩下的缩放在解码后做一次，结果和planDecode一样大
+     *
+     * @param path
+     * @param options 已经解析出原图的宽高
+     * @param width
+     * @param height
+     * @param signal
+     * @return
+     */
+    private Bitmap decodeRegion(String path, ByteBuffer data, BitmapFactory.Options options, int width, int height,
+            CancellationSignal signal) {
+        Rect region = ImageSizeUtil.getCenterCropRegion(options.outWidth, options.outHeight, width, height);
+        options.inSampleSize = ImageSizeUtil.caculateInSampleSize(region.width(), region.height(),
+                width, height, true);
+        options.inJustDecodeBounds = false;
+        BitmapRegionDecoder decoder = null;
+        Bitmap bitmap = null;
+        try {
+            if (data == null) {
+                decoder = BitmapRegionDecoder.newInstance(path, false);
+            } else if (data.hasArray()) {
+                decoder = BitmapRegionDecoder.newInstance(data.array(), data.arrayOffset() + data.position(),
+                        data.remaining(), false);
+            } else {
+                decoder = BitmapRegionDecoder.newInstance(new PackedBlobStore.ByteBufferInputStream(data), false);
+            }
+            if (signal == null || !signal.isCanceled()) {
+                bitmap = decoder.decodeRegion(region, options);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+        if (signal != null && signal.isCanceled()) {
+            mBitmapPool.put(bitmap);
+            return null;
+        }
+        if (null == bitmap) {
+            Log.d(TAG, "region decode failed, inSampleSize = " + options.inSampleSize + ", " + path);
+            return null;
+        }
+        float scale = ImageSizeUtil.getScale(bitmap.getWidth(), bitmap.getHeight(), width, height, true);
+        if (scale < 1f - ImageSizeUtil.SCALE_TOLERANCE) {
+            Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+            Bitmap scaled = scaleBitmap(bitmap, scale, config);
+            mBitmapPool.put(bitmap);
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    /**
+     * 根据图片需要显示的宽和高对资源图片进行压缩
+     *
+     * @param res
+     * @param resId
+     * @param width
+     * @param height
+     * @return
+     */
+    protected Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int width, int height) {
+        return decodeSampledBitmapFromResource(res, resId, width, height, false);
+    }
+
+    /**
+     * 同上，allowRgb565为true时不透明的图片用RGB_565解码
+     */
+    protected Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int width, int height,
+            boolean allowRgb565) {
+        return decodeSampledBitmapFromResource(res, resId, width, height, false, allowRgb565);
+    }
+
+    /**
+     * 同上，centerCrop为true时结果会被居中裁剪到width x height，解码的大小要覆盖它
+     */
+    protected Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int width, int height,
+            boolean centerCrop, boolean allowRgb565) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;  // 拿到资源的原始像素，不按资源目录的密度缩放
+        BitmapFactory.decodeResource(res, resId, options);
+        ImageSizeUtil.planConfig(options, allowRgb565);
+
+        ImageSizeUtil.planDecode(options, width, height, centerCrop);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        if (!options.inScaled) {
+            options.inDensity = 1;  // 不设置的话decodeResource会按资源目录的密度缩放
+            options.inTargetDensity = 1;
+        }
+        Bitmap bitmap = BitmapFactory.decodeResource(res, resId, options);
+        ImageSizeUtil.restoreDensity(bitmap, options);
+        return bitmap;
+    }
+
+    /**
+     * 从复用池中取出一个可以用来解码的bitmap
+     * KitKat以下只能复用宽高完全一致、inSampleSize为1并且不缩放的bitmap
+     *
+     * @param options 已经解析出原图宽高和planDecode的结果
+     * @return
+     */
+    private Bitmap getReusableBitmap(BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && (sampleSize != 1 || options.inScaled)) {
+            return null;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int width = ImageSizeUtil.getDecodedSize(options.outWidth, options);
+        int height = ImageSizeUtil.getDecodedSize(options.outHeight, options);
+        return mBitmapPool.get(width, height, options.inPreferredConfig);
+    }
+
+    /**
+     * 获得缓存图片的地址
+     *
+     * @param context
+     * @param uniqueName
+     * @return
+     */
+    public File getDiskCacheDir(Context context, String uniqueName) {
+        String cachePath;
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())
+                && context.getExternalCacheDir() != null) {
+            cachePath = context.getExternalCacheDir().getPath();
+        } else {
+            cachePath = context.getCacheDir().getPath();
+        }
+        return new File(cachePath + File.separator + uniqueName);
+    }
+
+    /**
+     * 获得硬盘缓存，第一次调用时打开；打开失败返回null，退化为直接从网络加载
+     *
+     * @param context
+     * @return
+     */
+    private DiskLruCache getDiskLruCache(Context context) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+                File cacheDir = getDiskCacheDir(context.getApplicationContext(), DISK_CACHE_DIR);
+                try {
+                    mDiskLruCache = DiskLruCache.open(cacheDir, DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT,
+                            mDiskCacheSize - getPackedStoreBudget());
+                    if (!isLegacyCacheDeleted) {
+                        isLegacyCacheDeleted = true;
+                        deleteLegacyCacheFiles(context.getApplicationContext());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    mDiskLruCache = null;
+                }
+            }
+            return mDiskLruCache;
+        }
+    }
+
+    /**
+     * 删除旧版本留在缓存根目录下的图片（内部和外部存储都检查，旧版本按当时的挂载状态选择其中一个），
+     * 只删除md5命名的普通文件，不碰子目录和别的文件
+     *
+     * @param context
+     */
+    private static void deleteLegacyCacheFiles(Context context) {
+        File[] roots = {context.getCacheDir(), context.getExternalCacheDir()};
+        for (File root : roots) {
+            File[] files = root != null ? root.listFiles() : null;
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isFile() && LEGACY_CACHE_FILE.matcher(file.getName()).matches() && !file.delete()) {
+                    Log.d(TAG, "failed to delete legacy cache file: " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获得小图片的合并存储，第一次调用时打开；没有开启或者打开失败时返回null，小图片也放在硬盘缓存中
+     *
+     * @param context
+     * @return
+     */
+    private PackedBlobStore getPackedStore(Context context) {
+        synchronized (mDiskCacheLock) {
+            long budget = getPackedStoreBudget();
+            if (budget <= 0) {
+                return null;
+            }
+            if (mPackedStore == null || mPackedStore.isClosed()) {
+                File dir = getDiskCacheDir(context.getApplicationContext(), PACKED_STORE_DIR);
+                try {
+                    mPackedStore = PackedBlobStore.open(dir, PackedBlobStore.maxSizeForBudget(budget),
+                            mPackedEntrySize);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    mPackedStore = null;
+                }
+            }
+            return mPackedStore;
+        }
+    }
+
+    /**
+     * 合并存储的段文件（包括碎片）最多占用的硬盘空间，从硬盘缓存的总大小中分出来，DiskLruCache使用剩下的部分；
+     * 没有开启合并存储，或者分到的空间不够一个段时为0，小图片也放在DiskLruCache中
+     */
+    private long getPackedStoreBudget() {
+        synchronized (mDiskCacheLock) {
+            if (mPackedEntrySize <= 0) {
+                return 0;
+            }
+            long budget = mDiskCacheSize / PACKED_STORE_FRACTION;
+            return PackedBlobStore.maxSizeForBudget(budget) > 0 ? budget : 0;
+        }
+    }
+
+    /**
+     * 设置硬盘缓存的最大字节数，超出后按最近最少使用的顺序淘汰；DiskLruCache和合并存储一共不超过这个大小
+     *
+     * @param maxSize
+     */
+    public void setDiskCacheSize(long maxSize) {
+        synchronized (mDiskCacheLock) {
+            mDiskCacheSize = maxSize;
+            long packedBudget = getPackedStoreBudget();
+            if (mDiskLruCache != null) {
+                mDiskLruCache.setMaxSize(maxSize - packedBudget);
+            }
+            if (mPackedStore != null && !mPackedStore.isClosed()) {
+                try {
+                    mPackedStore.setMaxSize(PackedBlobStore.maxSizeForBudget(packedBudget));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 开启或关闭硬盘缓存
+     *
+     * @param enable
+     */
+    public void setDiskCacheEnable(boolean enable) {
+        isDiskCacheEnable = enable;
+    }
+
+    /**
+     * 根据path在缓存中获取bitmap
+     *
+     * @param key
+     * @return
+     */
+    private Bitmap getBitmapFromLruCache(RequestKey key) {
+        return mLruCache.get(key);
+    }
+
+    /**
+     * 利用签名辅助类，将字符串字节数组
+     *
+     * @param str
+     * @return
+     */
+    public static String md5(String str) {
+        byte[] digest = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("md5");
             digest = md.digest(str.getBytes());
             return bytes2hex02(digest);
 
@@ -431,7 +2476,7 @@ public class MyImageLoader {
      * @param bytes
      * @return
      */
-    public String bytes2hex02(byte[] bytes) {
+    public static String bytes2hex02(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         String tmp = null;
         for (byte b : bytes) {
@@ -447,9 +2492,318 @@ public class MyImageLoader {
 
     }
 
+    private static String parseHost(String path) {
+        try {
+            return new URL(path).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 编码缓存中的一张图片：原始字节和硬盘缓存条目的缓存信息，过期后仍然要走硬盘缓存去重新验证
+     */
+    private static class EncodedImage {
+        final byte[] data;
+        final CacheHeaders headers;  // 可能为null
+
+        EncodedImage(byte[] data, CacheHeaders headers) {
+            this.data = data;
+            this.headers = headers;
+        }
+
+        boolean isFresh(long now) {
+            return headers == null || headers.isFresh(now);
+        }
+    }
+
+    /**
+     * imageView显示的bitmap，持有一次引用，直到imageView换了图片或者被回收。
+     * detach之后不释放：列表的缓存、过渡动画和截图仍然可能绘制detach的imageView。
+     * imageView被回收时进入队列，由releaseCollectedViews释放
+     */
+    private class DisplayedBitmap extends WeakReference<CustomImageView> {
+        final Bitmap bitmap;
+        boolean isReleased;  // 只在主线程读写，已经释放过的不会因为imageView被回收再释放一次
+
+        DisplayedBitmap(CustomImageView imageView, Bitmap bitmap, ReferenceQueue<CustomImageView> queue) {
+            super(imageView, queue);
+            this.bitmap = bitmap;
+        }
+
+        void release() {
+            if (!isReleased) {
+                isReleased = true;
+                releaseBitmap(bitmap);
+            }
+        }
+    }
+
+    /**
+     * 正在加载中的请求，以及所有在等待它结果的imageView
+     */
+    private class InFlightRequest extends TaskScheduler.Task {
+        final RequestKey key;  // 同时也是结果在内存缓存中的key
+        final String path;
+        final ImageSizeUtil.ImageSize imageSize;
+        final List<Transformation> transformations;
+        final boolean centerCrop;  // 显示时会被居中裁剪，解码的大小要覆盖控件
+        final Context context;
+        final boolean isFromNet;
+        final boolean progressive;  // 先分发缩略图，再分发完整的图片
+        final boolean allowRgb565;  // 不透明的图片可以用RGB_565解码，变换需要透明通道时为false
+        final List<ViewTarget> targets = new ArrayList<>();
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        boolean isPreload;  // 有预加载在等待这个任务，在mInFlightRequests的锁中读写
+        boolean decode = true;  // false时只下载到硬盘缓存
+        final String host;  // 网络图片的host，限制同一个host同时下载的数量
+        final RequestMetrics metrics;  // 没有设置MetricsListener时为null
+        final int firstStage;
+
+        // 以下字段在阶段之间传递，同一时间只有一个工作线程执行这个任务
+        volatile TaskScheduler scheduler;  // 当前排队的调度器
+        volatile int stage;
+        volatile String file;  // 硬盘缓存中的文件，可能已经过期
+        volatile DiskLruCache.Snapshot snapshot;  // file所在的条目，解码失败时判断是不是已经被淘汰或者替换
+        volatile boolean snapshotExpired;  // 解码时条目已经不是读取时的样子，重新走过一次硬盘缓存
+        volatile CacheHeaders cachedHeaders;  // 硬盘缓存条目的缓存信息，用于条件请求
+        volatile Bitmap decoded;  // 没有硬盘缓存时直接从网络解码的结果
+        volatile ByteBuffer encoded;  // 编码缓存或者合并存储中的图片字节，合并存储中的条目可能已经过期
+        volatile boolean usingCacheVariant;  // 因为内存中有更大的版本跳过了硬盘缓存
+        volatile boolean cacheVariantMissed;  // 解码时更大的版本已经不在了，不再走这条捷径
+
+        InFlightRequest(RequestKey key, String path, ImageSizeUtil.ImageSize imageSize,
+                List<Transformation> transformations, boolean centerCrop, Context context, boolean isFromNet,
+                boolean progressive, boolean allowRgb565, int priority, QueueType queueType) {
+            super(priority, queueType);
+            this.key = key;
+            this.path = path;
+            this.imageSize = imageSize;
+            this.transformations = transformations;
+            this.centerCrop = centerCrop;
+            this.context = context.getApplicationContext();
+            this.isFromNet = isFromNet;
+            this.progressive = progressive;
+            this.allowRgb565 = allowRgb565;
+            this.host = isFromNet ? parseHost(path) : null;
+            // 放进mInFlightRequests之前就确定第一个阶段，别的线程可能马上调整它的优先级或者取消它
+            this.firstStage = getFirstStage(isFromNet);
+            this.stage = firstStage;
+            this.scheduler = getScheduler(stage);
+            this.metrics = newMetrics(path, imageSize);
+            if (metrics != null) {
+                metrics.markQueued(stage);
+            }
+        }
+
+        @Override
+        protected String getHost() {
+            return host;
+        }
+
+        @Override
+        public void run() {
+            runRequest(this);
+        }
+
+        /**
+         * 只丢弃还在第一个阶段排队的任务；已经读过硬盘缓存或者下载完成的任务丢弃后之前的工作就白做了
+         */
+        @Override
+        protected boolean isDroppable() {
+            return stage == firstStage;
+        }
+
+        @Override
+        protected void onDropped() {
+            dropRequest(this);
+        }
+    }
+
+    /**
+     * 配置MyImageLoader，替代getInstance()中写死的默认值
+     */
+    public static class Builder {
+        private int threadCount = DEFAULT_NETWORK_THREAD_COUNT;
+        private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+        private int diskThreadCount = DEFAULT_DISK_THREAD_COUNT;
+        private int decodeThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+        private QueueType queueType = QueueType.LIFO;
+        private long diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        private boolean diskCacheEnable = true;
+        private float memoryCacheFraction = DEFAULT_MEMORY_CACHE_FRACTION;
+        private int memoryCacheSize;  // 大于0时优先于memoryCacheFraction
+        private int encodedCacheSize;  // 0表示不开启编码缓存
+        private int packedEntrySize = DEFAULT_PACKED_ENTRY_SIZE;
+
+        /**
+         * 下载线程数
+         */
+        public Builder threadCount(int threadCount) {
+            if (threadCount <= 0) {
+                throw new IllegalArgumentException("threadCount <= 0");
+            }
+            this.threadCount = threadCount;
+            return this;
+        }
+
+        /**
+         * 同一个host同时下载的最大数量，0表示不限制
+         */
+        public Builder maxRequestsPerHost(int maxRequestsPerHost) {
+            if (maxRequestsPerHost < 0) {
+                throw new IllegalArgumentException("maxRequestsPerHost < 0");
+            }
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * 读硬盘缓存的线程数
+         */
+        public Builder diskThreadCount(int diskThreadCount) {
+            if (diskThreadCount <= 0) {
+                throw new IllegalArgumentException("diskThreadCount <= 0");
+            }
+            this.diskThreadCount = diskThreadCount;
+            return this;
+        }
+
+        /**
+         * 解码和变换的线程数，默认为CPU核数
+         */
+        public Builder decodeThreadCount(int decodeThreadCount) {
+            if (decodeThreadCount <= 0) {
+                throw new IllegalArgumentException("decodeThreadCount <= 0");
+            }
+            this.decodeThreadCount = decodeThreadCount;
+            return this;
+        }
+
+        /**
+         * 排队任务上限，超出时丢弃最低优先级中最早加入的任务
+         */
+        public Builder maxQueueSize(int maxQueueSize) {
+            if (maxQueueSize <= 0) {
+                throw new IllegalArgumentException("maxQueueSize <= 0");
+            }
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        /**
+         * 请求没有指定出队策略时使用的默认策略
+         */
+        public Builder queueType(QueueType queueType) {
+            this.queueType = queueType;
+            return this;
+        }
+
+        /**
+         * 硬盘缓存的最大字节数
+         */
+        public Builder diskCacheSize(long diskCacheSize) {
+            if (diskCacheSize <= 0) {
+                throw new IllegalArgumentException("diskCacheSize <= 0");
+            }
+            this.diskCacheSize = diskCacheSize;
+            return this;
+        }
+
+        public Builder diskCacheEnable(boolean diskCacheEnable) {
+            this.diskCacheEnable = diskCacheEnable;
+            return this;
+        }
+
+        /**
+         * 内存缓存（LruCache和BitmapPool一起）占最大可用内存的比例，默认1/8
+         */
+        public Builder memoryCacheFraction(float memoryCacheFraction) {
+            if (memoryCacheFraction <= 0 || memoryCacheFraction > 1) {
+                throw new IllegalArgumentException("memoryCacheFraction must be in (0, 1]");
+            }
+            this.memoryCacheFraction = memoryCacheFraction;
+            this.memoryCacheSize = 0;
+            return this;
+        }
+
+        /**
+         * 内存缓存（LruCache和BitmapPool一起）的字节数，设置后memoryCacheFraction不再生效
+         */
+        public Builder memoryCacheSize(int memoryCacheSize) {
+            if (memoryCacheSize <= 0) {
+                throw new IllegalArgumentException("memoryCacheSize <= 0");
+            }
+            this.memoryCacheSize = memoryCacheSize;
+            return this;
+        }
+
+        /**
+         * 开启编码缓存：网络图片编码后的字节在内存中最多占用的字节数。
+         * bitmap缓存没有命中时直接从内存中的字节解码，不用读硬盘缓存的文件；默认不开启
+         */
+        public Builder encodedCacheSize(int encodedCacheSize) {
+            if (encodedCacheSize < 0) {
+                throw new IllegalArgumentException("encodedCacheSize < 0");
+            }
+            this.encodedCacheSize = encodedCacheSize;
+            return this;
+        }
+
+        /**
+         * 不超过这个字节数的网络图片合并存储在几个大的段文件中，不单独占用文件；0表示不使用合并存储。
+         * 默认16K，适合头像之类的缩略图
+         */
+        public Builder packedEntrySize(int packedEntrySize) {
+            if (packedEntrySize < 0 || packedEntrySize > PackedBlobStore.SEGMENT_SIZE / 4) {
+                throw new IllegalArgumentException("packedEntrySize must be in [0, "
+                        + PackedBlobStore.SEGMENT_SIZE / 4 + "]");
+            }
+            this.packedEntrySize = packedEntrySize;
+            return this;
+        }
+
+        public MyImageLoader build() {
+            return new MyImageLoader(this);
+        }
+    }
+
+    /**
+     * imageView与请求之间的绑定，imageView重新绑定别的path或者detach时失效
+     */
+    private static class ViewTarget {
+        // 弱引用，mViewTargets是WeakHashMap，value强引用key会导致imageView无法回收
+        final WeakReference<CustomImageView> imageView;
+        final ILoadingComplete iLoadingComplete;
+        InFlightRequest request;
+        boolean isCanceled;  // 只在主线程读写
+        int priority;  // 加载时请求的优先级，只在主线程读写
+        boolean isOnScreen;  // 只在主线程读写
+
+        ViewTarget(CustomImageView imageView, ILoadingComplete iLoadingComplete, int priority, boolean isOnScreen) {
+            this.imageView = new WeakReference<>(imageView);
+            this.iLoadingComplete = iLoadingComplete;
+            this.priority = priority;
+            this.isOnScreen = isOnScreen;
+        }
+
+        /**
+         * 不在屏幕上时降为预加载的优先级
+         */
+        int getEffectivePriority() {
+            return isOnScreen ? priority : TaskScheduler.PRIORITY_LOW;
+        }
+    }
+
     private class ImageBeanHolder {
         Bitmap bitmap;
         CustomImageView imageView;
         String path;
+        RequestKey key;  // bitmap在内存缓存中的key
+        ViewTarget target;
+        ILoadingComplete iLoadingComplete;
+        boolean isPreview;  // 渐进式加载的缩略图
+        RequestMetrics metrics;  // 分发之后回调给MetricsListener
     }
 }
@@ -0,0 +1,582 @@
+package com.example.customview.utils;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 小图片的合并存储：几十K以下的缩略图追加写进少数几个大的段文件（1.seg, 2.seg ...），
+ * 不再每张图片占用一个文件，省掉了大量的inode和open。
+ *
+ * 每条记录自带key和缓存信息：
+ *     int    magic
+ *     short  key的长度，key（US-ASCII）
+ *     int    数据长度，-1表示删除
+ *     long   expires，long lastModified
+ *     short  etag的长度，etag（UTF-8），0表示没有
+ *     byte[] 数据
+ * 打开时按段的编号顺序扫描一遍得到内存索引（key -> 段、偏移、长度），之后的查找只查索引；
+ * 读取时返回段文件映射出来的ByteBuffer，不复制数据；映射只覆盖已经写入的部分，读到之后追加的记录时
+ * 按新的长度重新映射。映射出去的范围内文件不会再变短，写到一半的记录只在下次打开、还没有映射之前被截掉。
+ *
+ * 删除和覆盖只追加新的记录，旧的记录成为碎片；碎片超过一半时在后台按段的编号从小到大压缩：
+ * 把最旧的段中还有效的记录复制到最新的段，然后删除最旧的段。总是从最旧的段开始，
+ * 删除记录丢掉后不会让更早的段中的旧记录复活。
+ * 已经交出去的ByteBuffer在段文件被删除后仍然可以读取。
+ * 碎片最多占一半，段文件总共最多占用max(2 * maxSize, SEGMENT_SIZE)，见maxSizeForBudget。
+ *
+ * date: 2018/9/20
+ * user: jackxu
+ */
+public final class PackedBlobStore implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_MAGIC = 0x504b4231;  // "PKB1"
+    private static final int TOMBSTONE = -1;
+    private static final int FIXED_HEADER_SIZE = 4 + 2 + 4 + 8 + 8 + 2;
+    private static final int MAX_KEY_LENGTH = 120;
+
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;  // 段文件超过这个大小后写新的段
+    private static final float COMPACT_THRESHOLD = 0.5f;  // 碎片占总大小的比例超过它时压缩
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int maxEntrySize;
+    private long maxSize;
+    private long size = 0;  // 有效记录的字节数
+    private long fileSize = 0;  // 所有段文件的字节数，减去size就是碎片
+    private boolean closed;
+
+    // 按编号排序，最后一个是正在写入的段
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    // accessOrder = true，迭代顺序就是 LRU 顺序；访问顺序不写入段文件，重新打开后按写入顺序
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    private final ThreadPoolExecutor executorService =
+            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private boolean compactScheduled;
+
+    private final Callable<Void> compactCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            while (true) {
+                // 每次只压缩一个段，中间释放锁，读取不会被长时间阻塞
+                synchronized (PackedBlobStore.this) {
+                    if (closed || !compactionRequired()) {
+                        compactScheduled = false;
+                        return null;
+                    }
+                    try {
+                        compactOldestSegment();
+                    } catch (IOException e) {
+                        compactScheduled = false;
+                        throw e;
+                    }
+                }
+            }
+        }
+    };
+
+    private PackedBlobStore(File directory, long maxSize, int maxEntrySize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * 打开 directory 下的存储，不存在则新建
+     *
+     * @param directory    存储目录，需要独占
+     * @param maxSize      有效数据的最大字节数
+     * @param maxEntrySize 单条数据的最大字节数，更大的数据不能放进来
+     */
+    public static PackedBlobStore open(File directory, long maxSize, int maxEntrySize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (maxEntrySize <= 0 || maxEntrySize > SEGMENT_SIZE / 4) {
+            throw new IllegalArgumentException("maxEntrySize must be in (0, " + SEGMENT_SIZE / 4 + "]");
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("failed to create directory " + directory);
+        }
+        PackedBlobStore store = new PackedBlobStore(directory, maxSize, maxEntrySize);
+        try {
+            store.load();
+        } catch (IOException e) {
+            // 索引都在段文件里，读不出来就整个清空重新开始
+            store.close();
+            deleteContents(directory);
+            store = new PackedBlobStore(directory, maxSize, maxEntrySize);
+            store.load();
+        }
+        return store;
+    }
+
+    /**
+     * 段文件最多占用budget字节时有效数据的上限：碎片超过一半时会被压缩，段文件最多是有效数据的2倍；
+     * 不到一个段的大小时不压缩，budget比SEGMENT_SIZE小时返回0
+     */
+    public static long maxSizeForBudget(long budget) {
+        return budget >= SEGMENT_SIZE ? budget / 2 : 0;
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                } catch (NumberFormatException e) {
+                    file.delete();
+                }
+            }
+        }
+        for (Segment segment : segments.values()) {
+            scan(segment);
+        }
+        if (segments.isEmpty()) {
+            newSegment(1);
+        }
+        trimToSize();
+    }
+
+    /**
+     * 回放一个段中的记录，遇到不完整或者损坏的记录时从那里截断
+     */
+    private void scan(Segment segment) throws IOException {
+        long length = segment.channel.size();
+        ByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        int position = 0;
+        while (buffer.remaining() >= FIXED_HEADER_SIZE) {
+            int start = buffer.position();
+            if (buffer.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            int keyLength = buffer.getShort();
+            if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH
+                    || buffer.remaining() < keyLength + FIXED_HEADER_SIZE - 6) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            int dataLength = buffer.getInt();
+            long expires = buffer.getLong();
+            long lastModified = buffer.getLong();
+            int etagLength = buffer.getShort();
+            if (dataLength < TOMBSTONE || etagLength < 0
+                    || buffer.remaining() < etagLength + Math.max(dataLength, 0)) {
+                break;
+            }
+            byte[] etagBytes = new byte[etagLength];
+            buffer.get(etagBytes);
+            buffer.position(buffer.position() + Math.max(dataLength, 0));
+            position = buffer.position();
+
+            String key = new String(keyBytes, US_ASCII);
+            int recordLength = position - start;
+            segment.size = position;
+            fileSize += recordLength;
+            Entry old = index.remove(key);
+            if (old != null) {
+                release(old);
+            }
+            if (dataLength != TOMBSTONE) {
+                CacheHeaders headers = new CacheHeaders(etagLength > 0 ? new String(etagBytes, UTF_8) : null,
+                        lastModified, expires);
+                Entry entry = new Entry(segment.id, start, recordLength, dataLength, headers);
+                index.put(key, entry);
+                segment.liveBytes += recordLength;
+                size += recordLength;
+            }
+        }
+        if (position < length) {
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    /**
+     * 查找数据，返回的ByteBuffer直接映射在段文件上，只读
+     *
+     * @return 不存在时返回null
+     */
+    public synchronized Blob get(String key) throws IOException {
+        checkNotClosed();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = segments.get(entry.segment);
+        ByteBuffer buffer = segment.map(entry.offset + entry.recordLength).duplicate();
+        int dataOffset = entry.offset + entry.recordLength - entry.dataLength;
+        buffer.position(dataOffset);
+        buffer.limit(dataOffset + entry.dataLength);
+        return new Blob(buffer.slice(), entry.headers);
+    }
+
+    /**
+     * 把文件的内容和缓存信息写进来，已经存在的key会被覆盖
+     *
+     * @return 文件超过maxEntrySize或者读取失败时返回false
+     */
+    public synchronized boolean put(String key, File file, CacheHeaders headers) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        long length = file.length();
+        if (length <= 0 || length > maxEntrySize) {
+            return false;
+        }
+        byte[] data = new byte[(int) length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer record = encodeRecord(key, headers, data);
+        Entry old = index.remove(key);
+        if (old != null) {
+            release(old);
+        }
+        index.put(key, append(record, data.length, headers));
+        trimToSize();
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+
+    /**
+     * 删除数据，追加一条删除记录
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        Entry entry = index.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        release(entry);
+        append(encodeRecord(key, null, null), TOMBSTONE, null);
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(long maxSize) throws IOException {
+        this.maxSize = maxSize;
+        if (!closed) {
+            trimToSize();
+            scheduleCompactionIfNeeded();
+        }
+    }
+
+    /**
+     * 有效数据（包括记录头）的字节数
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * 所有段文件的字节数，包括还没有压缩掉的碎片
+     */
+    public synchronized long fileSize() {
+        return fileSize;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 关闭段文件；已经映射出去的ByteBuffer仍然可以读取
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments.values()) {
+            DiskLruCache.closeQuietly(segment.file);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("store is closed");
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (!DiskLruCache.LEGAL_KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("keys must match regex [a-z0-9_-]{1,120}: \"" + key + "\"");
+        }
+    }
+
+    private static ByteBuffer encodeRecord(String key, CacheHeaders headers, byte[] data) {
+        byte[] keyBytes = key.getBytes(US_ASCII);
+        byte[] etagBytes = headers != null && headers.etag != null ? headers.etag.getBytes(UTF_8) : new byte[0];
+        if (etagBytes.length > Short.MAX_VALUE) {
+            etagBytes = new byte[0];  // 不合理的ETag，放弃条件请求
+        }
+        int dataLength = data != null ? data.length : 0;
+        ByteBuffer record = ByteBuffer.allocate(FIXED_HEADER_SIZE + keyBytes.length + etagBytes.length + dataLength);
+        record.putInt(RECORD_MAGIC);
+        record.putShort((short) keyBytes.length);
+        record.put(keyBytes);
+        record.putInt(data != null ? data.length : TOMBSTONE);
+        record.putLong(headers != null ? headers.expires : 0);
+        record.putLong(headers != null ? headers.lastModified : 0);
+        record.putShort((short) etagBytes.length);
+        record.put(etagBytes);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+        return record;
+    }
+
+    /**
+     * 把一条完整的记录追加到最新的段，写满时换一个新的段
+     */
+    private Entry append(ByteBuffer record, int dataLength, CacheHeaders headers) throws IOException {
+        int recordLength = record.remaining();
+        Segment segment = segments.lastEntry().getValue();
+        if (segment.size > 0 && segment.size + recordLength > SEGMENT_SIZE) {
+            segment = newSegment(segment.id + 1);
+        }
+        int offset = segment.size;
+        try {
+            while (record.hasRemaining()) {
+                segment.channel.write(record, offset + record.position());
+            }
+        } catch (IOException e) {
+            segment.channel.truncate(offset);  // 丢掉写了一半的记录
+            throw e;
+        }
+        segment.size = offset + recordLength;
+        fileSize += recordLength;
+        if (dataLength == TOMBSTONE) {
+            return null;
+        }
+        segment.liveBytes += recordLength;
+        size += recordLength;
+        return new Entry(segment.id, offset, recordLength, dataLength, headers);
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, id + SEGMENT_SUFFIX));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * 记录不再有效，变成碎片
+     */
+    private void release(Entry entry) {
+        segments.get(entry.segment).liveBytes -= entry.recordLength;
+        size -= entry.recordLength;
+    }
+
+    private void trimToSize() throws IOException {
+        while (size > maxSize) {
+            Map.Entry<String, Entry> toEvict = index.entrySet().iterator().next();
+            remove(toEvict.getKey());
+        }
+    }
+
+    private boolean compactionRequired() {
+        return segments.size() > 1 && fileSize > SEGMENT_SIZE
+                && fileSize - size > fileSize * COMPACT_THRESHOLD;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (!compactScheduled && compactionRequired()) {
+            compactScheduled = true;
+            executorService.submit(compactCallable);
+        }
+    }
+
+    /**
+     * 把最旧的段中有效的记录原样复制到最新的段，然后删除最旧的段
+     */
+    private void compactOldestSegment() throws IOException {
+        Segment oldest = segments.firstEntry().getValue();
+        ByteBuffer source = oldest.map(oldest.size);
+        // 复制时会改变index的迭代顺序，先把要移动的条目取出来
+        ArrayList<Map.Entry<String, Entry>> moving = new ArrayList<Map.Entry<String, Entry>>();
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+            if (e.getValue().segment == oldest.id) {
+                moving.add(e);
+            }
+        }
+        for (Map.Entry<String, Entry> e : moving) {
+            Entry entry = e.getValue();
+            ByteBuffer record = source.duplicate();
+            record.position(entry.offset);
+            record.limit(entry.offset + entry.recordLength);
+            release(entry);
+            try {
+                e.setValue(append(record.slice(), entry.dataLength, entry.headers));
+            } catch (IOException ex) {
+                index.remove(e.getKey());
+                throw ex;
+            }
+        }
+        segments.remove(oldest.id);
+        fileSize -= oldest.size;
+        DiskLruCache.closeQuietly(oldest.file);
+        if (!oldest.path.delete() && oldest.path.exists()) {
+            throw new IOException("failed to delete " + oldest.path);
+        }
+    }
+
+    private static void deleteContents(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * 一条数据：映射在段文件上的字节和缓存信息
+     */
+    public static final class Blob {
+        public final ByteBuffer data;
+        public final CacheHeaders headers;
+
+        Blob(ByteBuffer data, CacheHeaders headers) {
+            this.data = data;
+            this.headers = headers;
+        }
+    }
+
+    private static final class Entry {
+        final int segment;
+        final int offset;  // 记录在段中的起始位置
+        final int recordLength;
+        final int dataLength;
+        final CacheHeaders headers;
+
+        Entry(int segment, int offset, int recordLength, int dataLength, CacheHeaders headers) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.dataLength = dataLength;
+            this.headers = headers;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File path;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        int size;  // 已经写入的完整记录的字节数
+        int liveBytes;
+        private MappedByteBuffer mapped;
+
+        Segment(int id, File path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.file = new RandomAccessFile(path, "rw");
+            this.channel = file.getChannel();
+        }
+
+        /**
+         * 只读映射已经写入的部分，至少包含前end个字节。映射不会超出文件末尾，访问时不会出现SIGBUS；
+         * 正在写入的段变大后重新映射，旧的映射留给已经交出去的ByteBuffer，不再被引用后随GC释放
+         */
+        MappedByteBuffer map(int end) throws IOException {
+            if (mapped == null || mapped.capacity() < end) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapped;
+        }
+    }
+
+    /**
+     * 从ByteBuffer中读取的InputStream，给只接受流的BitmapFactory.decodeStream使用，不复制数据
+     */
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.customview.utils;
+
+
+import android.widget.AbsListView;
+
+
+/**
+ * 列表滑动时暂停加载，停下来之后恢复，滑动过程中一闪而过的item不会占用下载和解码
+ *
+ * ListView/GridView直接setOnScrollListener；RecyclerView的SCROLL_STATE_IDLE/DRAGGING/SETTLING
+ * 和AbsListView的取值相同，在RecyclerView.OnScrollListener中调用onScrollStateChanged(int)即可
+ *
+ * date: 2018/9/19
+ * user: jackxu
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener {
+
+    private final MyImageLoader mImageLoader;
+    private final boolean pauseOnScroll;  // 手指拖动时暂停
+    private final boolean pauseOnFling;  // 惯性滑动时暂停
+    private final AbsListView.OnScrollListener mExternalListener;
+
+    /**
+     * 只在惯性滑动时暂停
+     */
+    public PauseOnScrollListener(MyImageLoader imageLoader) {
+        this(imageLoader, false, true, null);
+    }
+
+    public PauseOnScrollListener(MyImageLoader imageLoader, boolean pauseOnScroll, boolean pauseOnFling) {
+        this(imageLoader, pauseOnScroll, pauseOnFling, null);
+    }
+
+    /**
+     * @param externalListener 列表原来的OnScrollListener，事件会继续转发给它
+     */
+    public PauseOnScrollListener(MyImageLoader imageLoader, boolean pauseOnScroll, boolean pauseOnFling,
+            AbsListView.OnScrollListener externalListener) {
+        mImageLoader = imageLoader;
+        this.pauseOnScroll = pauseOnScroll;
+        this.pauseOnFling = pauseOnFling;
+        mExternalListener = externalListener;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        onScrollStateChanged(scrollState);
+        if (mExternalListener != null) {
+            mExternalListener.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mExternalListener != null) {
+            mExternalListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+
+    /**
+     * @param scrollState AbsListView.OnScrollListener.SCROLL_STATE_*，或者取值相同的RecyclerView.SCROLL_STATE_*
+     */
+    public void onScrollStateChanged(int scrollState) {
+        boolean pause;
+        switch (scrollState) {
+            case SCROLL_STATE_TOUCH_SCROLL:
+                pause = pauseOnScroll;
+                break;
+            case SCROLL_STATE_FLING:
+                pause = pauseOnFling;
+                break;
+            default:
+                pause = false;
+                break;
+        }
+        if (pause) {
+            mImageLoader.pause();
+        } else {
+            mImageLoader.resume();
+        }
+    }
+}
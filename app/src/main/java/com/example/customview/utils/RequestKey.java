@@ -0,0 +1,196 @@
+package com.example.customview.utils;
+
+
+/**
+ * 一次请求的key，每个请求只构建一次，内存缓存、硬盘缓存和正在加载的表都用它
+ *
+ * path只在构建时用MurmurHash3(x64, 128位)计算一次，按char直接读取，不需要先转成byte[]；
+ * 硬盘缓存的文件名是这个hash的32位16进制字符串，第一次用到时才生成。
+ * equals比较hash、目标大小和变换，不再逐字符比较url；128位hash碰撞的概率可以忽略
+ *
+ * date: 2018/9/18
+ * user: jackxu
+ */
+public final class RequestKey {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    final String path;
+    final int width;
+    final int height;
+    final String transformationKey;  // 没有变换时为""
+    final boolean isPreview;  // 渐进式加载的缩略图，和完整的图片分开缓存
+
+    private final long mHash1;
+    private final long mHash2;
+    private final int mHashCode;
+    private volatile String mDiskKey;
+
+    /**
+     * @param path              图片的url或者本地路径
+     * @param width             解码的目标宽
+     * @param height            解码的目标高
+     * @param transformationKey Transformations.key()，没有变换时为""
+     */
+    public RequestKey(String path, int width, int height, String transformationKey) {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.transformationKey = transformationKey;
+        this.isPreview = false;
+
+        // MurmurHash3_x64_128，输入是path的UTF-16LE字节，每16个字节（8个char）一块
+        long h1 = 0;
+        long h2 = 0;
+        int length = path.length();
+        int blocks = length >> 3;
+        for (int i = 0; i < blocks; i++) {
+            int index = i << 3;
+            h1 ^= mixK1(pack(path, index, 4));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(pack(path, index + 4, 4));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = blocks << 3;
+        int remaining = length - tail;
+        if (remaining > 4) {
+            h2 ^= mixK2(pack(path, tail + 4, remaining - 4));
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(pack(path, tail, Math.min(remaining, 4)));
+        }
+        long byteLength = (long) length * 2;
+        h1 ^= byteLength;
+        h2 ^= byteLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        mHash1 = h1;
+        mHash2 = h2;
+        mHashCode = computeHashCode();
+    }
+
+    private RequestKey(RequestKey source, boolean isPreview) {
+        this.path = source.path;
+        this.width = source.width;
+        this.height = source.height;
+        this.transformationKey = source.transformationKey;
+        this.isPreview = isPreview;
+        mHash1 = source.mHash1;
+        mHash2 = source.mHash2;
+        mHashCode = computeHashCode();
+    }
+
+    private int computeHashCode() {
+        int result = (int) (mHash1 ^ (mHash1 >>> 32));
+        result = 31 * result + width;
+        result = 31 * result + height;
+        result = 31 * result + transformationKey.hashCode();
+        result = 31 * result + (isPreview ? 1 : 0);
+        return result;
+    }
+
+    /**
+     * 同一个请求的缩略图的key，不需要重新计算hash
+     */
+    RequestKey preview() {
+        return new RequestKey(this, true);
+    }
+
+    /**
+     * 未变换的完整图片，可以按比例缩小给更小的控件使用
+     */
+    boolean isScalable() {
+        return !isPreview && transformationKey.isEmpty();
+    }
+
+    /**
+     * 硬盘缓存的key，只和path有关
+     */
+    public String getDiskKey() {
+        String diskKey = mDiskKey;
+        if (diskKey == null) {
+            char[] chars = new char[32];
+            appendHex(chars, 0, mHash1);
+            appendHex(chars, 16, mHash2);
+            diskKey = new String(chars);
+            mDiskKey = diskKey;
+        }
+        return diskKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RequestKey)) {
+            return false;
+        }
+        RequestKey other = (RequestKey) o;
+        return mHash1 == other.mHash1 && mHash2 == other.mHash2
+                && width == other.width && height == other.height
+                && isPreview == other.isPreview
+                && transformationKey.equals(other.transformationKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public String toString() {
+        return path + "_" + width + "x" + height + transformationKey + (isPreview ? "#preview" : "");
+    }
+
+    private static void appendHex(char[] chars, int offset, long value) {
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    /**
+     * 从index开始的count个char按小端拼成一个long
+     */
+    private static long pack(String s, int index, int count) {
+        long k = 0;
+        for (int i = 0; i < count; i++) {
+            k |= (long) s.charAt(index + i) << (i << 4);
+        }
+        return k;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
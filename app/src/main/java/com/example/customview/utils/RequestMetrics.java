@@ -0,0 +1,182 @@
+package com.example.customview.utils;
+
+
+/**
+ * 一次加载的耗时和数据量，只在MyImageLoader设置了MetricsListener时才会记录
+ *
+ * 时间都是System.nanoTime()，各阶段分成排队等待和执行两段，可以看出慢在排队、硬盘、下载、解码、变换还是主线程分发。
+ *
+ * date: 2018/9/17
+ * user: jackxu
+ */
+public class RequestMetrics {
+
+    public static final int STAGE_DISK = 0;  // 查硬盘缓存的索引和缓存信息
+    public static final int STAGE_NETWORK = 1;  // 下载或者重新验证
+    public static final int STAGE_DECODE = 2;  // 解码和变换
+    static final int STAGE_COUNT = 3;
+
+    /**
+     * 图片从哪里来
+     */
+    public enum Source {
+        MEMORY,  // 内存缓存命中
+        MEMORY_VARIANT,  // 从内存中更大的版本缩小得到
+        ENCODED_MEMORY,  // 编码缓存命中，从内存中的字节解码
+        DISK,  // 硬盘缓存命中（包括重新验证得到304）
+        NETWORK,  // 从网络下载
+        LOCAL  // 本地文件或者资源
+    }
+
+    final String path;
+    final long submitTime;
+    Source source;
+    boolean revalidated;  // 硬盘缓存过期，条件请求得到了304
+    int queueDepth;  // 提交时各个调度器中排队的任务总数
+    final long[] queuedAt = new long[STAGE_COUNT];
+    final long[] startedAt = new long[STAGE_COUNT];
+    final long[] finishedAt = new long[STAGE_COUNT];
+    long transformNanos;
+    long bytesDownloaded;
+    long decodedBytes;  // 解码出来的bitmap占用的内存
+    int bytesPerPixel;  // 解码的格式每个像素的字节数，RGB_565为2
+    long displayedBytes;  // 按控件大小ARGB_8888显示需要的内存
+    long postTime;  // 结果post到主线程的时间
+    long deliverTime;  // 主线程处理的时间
+    boolean success;
+    boolean canceled;  // 等待的imageView都取消了，任务没有完成
+    int deliveredViews;  // 显示了结果的imageView数，合并到这个任务上的imageView也算在内
+    int canceledViews;  // 结果到达之前取消或者绑定了别的path的imageView数
+    int repeatedLoads;  // 同一个imageView在加载中再次请求同一张图片的次数
+
+    RequestMetrics(String path, long submitTime) {
+        this.path = path;
+        this.submitTime = submitTime;
+    }
+
+    void markQueued(int stage) {
+        queuedAt[stage] = System.nanoTime();
+    }
+
+    void markStarted(int stage) {
+        startedAt[stage] = System.nanoTime();
+    }
+
+    void markFinished(int stage) {
+        finishedAt[stage] = System.nanoTime();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public boolean isRevalidated() {
+        return revalidated;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * 任务在完成之前被取消，没有结果
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * 显示了结果的imageView数；大于1时其它的imageView和这个任务合并，没有单独加载
+     */
+    public int getDeliveredViews() {
+        return deliveredViews;
+    }
+
+    /**
+     * 挂在这个任务上、结果到达之前取消的imageView数
+     */
+    public int getCanceledViews() {
+        return canceledViews;
+    }
+
+    /**
+     * 同一个imageView在结果到达之前再次加载同一张图片的次数，这些调用直接并入正在加载的任务
+     */
+    public int getRepeatedLoads() {
+        return repeatedLoads;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * 在某个阶段的调度器中排队等待的时间，没有经过这个阶段时为0
+     */
+    public long getQueueWaitNanos(int stage) {
+        return startedAt[stage] > 0 ? startedAt[stage] - queuedAt[stage] : 0;
+    }
+
+    /**
+     * 某个阶段执行的时间，没有经过这个阶段时为0
+     */
+    public long getStageNanos(int stage) {
+        return finishedAt[stage] > 0 ? finishedAt[stage] - startedAt[stage] : 0;
+    }
+
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    /**
+     * 从post到主线程Handler处理的时间
+     */
+    public long getDeliverWaitNanos() {
+        return deliverTime > 0 ? deliverTime - postTime : 0;
+    }
+
+    /**
+     * 从提交到显示（或者失败）的总时间
+     */
+    public long getTotalNanos() {
+        return (deliverTime > 0 ? deliverTime : postTime) - submitTime;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    public long getDisplayedBytes() {
+        return displayedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestMetrics[" + path + ",source=" + source + ",revalidated=" + revalidated
+                + ",success=" + success + ",canceled=" + canceled
+                + ",views=" + deliveredViews + "/" + (deliveredViews + canceledViews) + ",queueDepth=" + queueDepth
+                + ",diskWait=" + getQueueWaitNanos(STAGE_DISK) / 1000 + "us"
+                + ",disk=" + getStageNanos(STAGE_DISK) / 1000 + "us"
+                + ",networkWait=" + getQueueWaitNanos(STAGE_NETWORK) / 1000 + "us"
+                + ",network=" + getStageNanos(STAGE_NETWORK) / 1000 + "us"
+                + ",decodeWait=" + getQueueWaitNanos(STAGE_DECODE) / 1000 + "us"
+                + ",decode=" + getStageNanos(STAGE_DECODE) / 1000 + "us"
+                + ",transform=" + transformNanos / 1000 + "us"
+                + ",deliverWait=" + getDeliverWaitNanos() / 1000 + "us"
+                + ",total=" + getTotalNanos() / 1000 + "us"
+                + ",downloaded=" + bytesDownloaded + ",decoded=" + decodedBytes + ",bytesPerPixel=" + bytesPerPixel
+                + ",displayed=" + displayedBytes + "]";
+    }
+}
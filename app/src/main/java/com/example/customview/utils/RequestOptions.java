@@ -0,0 +1,65 @@
+package com.example.customview.utils;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * 单个加载请求的参数
+ *
+ * date: 2018/9/5
+ * user: jackxu
+ */
+public class RequestOptions {
+
+    int priority = TaskScheduler.PRIORITY_NORMAL;
+    MyImageLoader.QueueType queueType;  // 为null时使用MyImageLoader的默认策略
+    final List<Transformation> transformations = new ArrayList<>();
+    boolean progressive;
+    boolean allowRgb565 = true;
+    boolean centerCrop;  // 没有裁剪的变换，但显示时会居中裁剪（shader模式的圆形、圆角），解码的大小要覆盖控件
+
+    /**
+     * 设置优先级，TaskScheduler.PRIORITY_LOW / PRIORITY_NORMAL / PRIORITY_HIGH
+     */
+    public RequestOptions priority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * 设置出队策略，FIFO先加入的先加载，LIFO后加入的先加载
+     */
+    public RequestOptions queueType(MyImageLoader.QueueType queueType) {
+        this.queueType = queueType;
+        return this;
+    }
+
+    /**
+     * 追加变换，在工作线程中按顺序执行，内存缓存保存变换后的结果
+     */
+    public RequestOptions transform(Transformation... transformations) {
+        this.transformations.addAll(Arrays.asList(transformations));
+        return this;
+    }
+
+    /**
+     * 渐进式加载：网络图片下载完成后先显示一张很小的缩略图，完整的图片解码完成后再替换。
+     * 两个阶段共用一次下载，分别缓存；没有开启硬盘缓存时不生效
+     */
+    public RequestOptions progressive(boolean progressive) {
+        this.progressive = progressive;
+        return this;
+    }
+
+    /**
+     * 是否允许不透明的图片（JPEG）用RGB_565解码，内存减半，默认允许。
+     * 渐变色较多、对色彩要求高的图片可以关闭；圆形、圆角等需要透明通道的变换总是使用ARGB_8888
+     */
+    public RequestOptions allowRgb565(boolean allowRgb565) {
+        this.allowRgb565 = allowRgb565;
+        return this;
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.customview.utils;
+
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * 图片加载任务调度器
+ *
+ * 固定数量的工作线程直接从队列中取任务执行，不再经过后台Looper线程中转。
+ * 每个优先级一个双端队列，FIFO任务加到队尾，LIFO任务加到队头，工作线程总是从最高优先级队列的队头取任务；
+ * 队列有长度上限，超出时丢弃最低优先级中最早加入的任务；isDroppable()返回false的任务不会被丢弃，
+ * 只剩这样的任务时队列可以暂时超出上限。
+ * 可以限制同一个host同时执行的任务数，达到上限的任务留在队列中，工作线程跳过它们去执行别的任务。
+ *
+ * date: 2018/9/5
+ * user: jackxu
+ */
+public class TaskScheduler {
+
+    private static final String TAG = "TaskScheduler";
+
+    public static final int PRIORITY_LOW = 0;  // 预加载
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    private final LinkedList<Task>[] mQueues;
+    private final int mMaxQueueSize;
+    private int mQueueSize;
+    private long mSequence;  // 入队序号，越小越早
+    private final Thread[] mWorkers;
+    private boolean isShutdown;
+    private int mMaxTasksPerHost;  // 0表示不限制
+    private final Map<String, Integer> mRunningPerHost = new HashMap<>();
+
+    /**
+     * @param name         工作线程名前缀
+     * @param threadCount  工作线程数
+     * @param maxQueueSize 队列中最多等待的任务数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TaskScheduler(String name, int threadCount, int maxQueueSize) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount <= 0");
+        }
+        if (maxQueueSize <= 0) {
+            throw new IllegalArgumentException("maxQueueSize <= 0");
+        }
+        mMaxQueueSize = maxQueueSize;
+        mQueues = new LinkedList[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new LinkedList<>();
+        }
+        mWorkers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Worker(name + "-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * 加入一个任务，队列已满时丢弃最陈旧的可以丢弃的任务
+     */
+    public void submit(Task task) {
+        Task dropped = null;
+        synchronized (this) {
+            if (isShutdown) {
+                dropped = task;
+            } else {
+                task.mSequence = mSequence++;
+                enqueue(task);
+                if (mQueueSize > mMaxQueueSize) {
+                    dropped = removeStalest();
+                }
+                notify();
+            }
+        }
+        if (dropped != null) {
+            dropped.onDropped();
+        }
+    }
+
+    /**
+     * 从队列中移除还没有开始执行的任务
+     *
+     * @return 任务是否还在队列中
+     */
+    public synchronized boolean remove(Task task) {
+        if (task.mQueuedIn != this) {
+            return false;
+        }
+        mQueues[task.mQueueIndex].remove(task);
+        task.mQueuedIn = null;
+        mQueueSize--;
+        return true;
+    }
+
+    /**
+     * 修改任务的优先级，还在排队的任务会被移到新优先级的队列中。
+     * 任务可能已经交给了别的调度器，总是在它当前排队的调度器中调整；正在执行的任务在下次入队时使用新的优先级
+     */
+    public void setPriority(Task task, int priority) {
+        task.mPriority = clampPriority(priority);
+        TaskScheduler queuedIn = task.mQueuedIn;
+        if (queuedIn != null) {
+            queuedIn.requeue(task);
+        }
+    }
+
+    private synchronized void requeue(Task task) {
+        if (task.mQueuedIn != this || task.mQueueIndex == task.mPriority) {
+            return;
+        }
+        mQueues[task.mQueueIndex].remove(task);
+        mQueueSize--;
+        enqueue(task);
+    }
+
+    /**
+     * 限制同一个host同时执行的任务数，0表示不限制
+     */
+    public synchronized void setMaxTasksPerHost(int maxTasksPerHost) {
+        if (maxTasksPerHost < 0) {
+            throw new IllegalArgumentException("maxTasksPerHost < 0");
+        }
+        mMaxTasksPerHost = maxTasksPerHost;
+        notifyAll();
+    }
+
+    /**
+     * 当前排队中的任务数
+     */
+    public synchronized int getQueueSize() {
+        return mQueueSize;
+    }
+
+    /**
+     * 停止所有工作线程，丢弃排队中的任务
+     */
+    public void shutdown() {
+        List<Task> dropped = new ArrayList<>();
+        synchronized (this) {
+            isShutdown = true;
+            for (LinkedList<Task> queue : mQueues) {
+                for (Task task : queue) {
+                    task.mQueuedIn = null;
+                    dropped.add(task);
+                }
+                queue.clear();
+            }
+            mQueueSize = 0;
+            notifyAll();
+        }
+        for (Task task : dropped) {
+            task.onDropped();
+        }
+    }
+
+    private void enqueue(Task task) {
+        int priority = task.mPriority;
+        if (task.mQueueType == MyImageLoader.QueueType.FIFO) {
+            mQueues[priority].addLast(task);
+        } else {
+            mQueues[priority].addFirst(task);
+        }
+        task.mQueueIndex = priority;
+        task.mQueuedIn = this;
+        mQueueSize++;
+    }
+
+    /**
+     * 移除最低优先级队列中入队最早的可以丢弃的任务，没有可以丢弃的任务时返回null
+     */
+    private Task removeStalest() {
+        for (LinkedList<Task> queue : mQueues) {
+            Task stalest = null;
+            for (Task task : queue) {
+                if (task.isDroppable() && (stalest == null || task.mSequence < stalest.mSequence)) {
+                    stalest = task;
+                }
+            }
+            if (stalest == null) {
+                continue;
+            }
+            queue.remove(stalest);
+            stalest.mQueuedIn = null;
+            mQueueSize--;
+            return stalest;
+        }
+        return null;
+    }
+
+    private synchronized Task take() throws InterruptedException {
+        while (true) {
+            if (isShutdown) {
+                return null;
+            }
+            for (int i = PRIORITY_COUNT - 1; i >= 0; i--) {
+                Iterator<Task> iterator = mQueues[i].iterator();
+                while (iterator.hasNext()) {
+                    Task task = iterator.next();
+                    String host = task.getHost();
+                    if (!canRun(host)) {
+                        continue;  // 这个host的任务已经达到上限，先执行后面的任务
+                    }
+                    iterator.remove();
+                    task.mQueuedIn = null;
+                    mQueueSize--;
+                    if (host != null) {
+                        Integer running = mRunningPerHost.get(host);
+                        mRunningPerHost.put(host, running == null ? 1 : running + 1);
+                    }
+                    task.mRunningHost = host;
+                    return task;
+                }
+            }
+            wait();  // 队列为空，或者剩下的任务都在等待自己的host
+        }
+    }
+
+    private boolean canRun(String host) {
+        if (host == null || mMaxTasksPerHost <= 0) {
+            return true;
+        }
+        Integer running = mRunningPerHost.get(host);
+        return running == null || running < mMaxTasksPerHost;
+    }
+
+    private synchronized void finish(String host) {
+        if (host == null) {
+            return;
+        }
+        Integer running = mRunningPerHost.get(host);
+        if (running == null || running <= 1) {
+            mRunningPerHost.remove(host);
+        } else {
+            mRunningPerHost.put(host, running - 1);
+        }
+        notifyAll();  // 等待这个host的任务可以执行了
+    }
+
+    private static int clampPriority(int priority) {
+        return Math.max(PRIORITY_LOW, Math.min(PRIORITY_HIGH, priority));
+    }
+
+    private class Worker extends Thread {
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    return;
+                }
+                // 任务执行时可能把自己提交给别的调度器，先记下这次占用的host名额
+                String host = task.mRunningHost;
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // 包括解码时的OutOfMemoryError，工作线程不能因为一个任务而退出
+                    Log.e(TAG, "task failed on " + getName(), e);
+                } finally {
+                    finish(host);
+                }
+            }
+        }
+    }
+
+    /**
+     * 可调度的任务，带有优先级和出队策略
+     */
+    public static abstract class Task implements Runnable {
+        private volatile int mPriority;
+        private int mQueueIndex;  // 排在哪个优先级的队列中，在排队的调度器的锁中读写；setPriority不加锁时可能和它不同
+        private final MyImageLoader.QueueType mQueueType;
+        private long mSequence;
+        private volatile TaskScheduler mQueuedIn;  // 正在排队的调度器，任务可以先后交给不同的调度器
+        private String mRunningHost;  // 执行时占用的host名额
+
+        public Task(int priority, MyImageLoader.QueueType queueType) {
+            mPriority = clampPriority(priority);
+            mQueueType = queueType;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * 任务访问的host，用于setMaxTasksPerHost的限制；返回null表示不受限制
+         */
+        protected String getHost() {
+            return null;
+        }
+
+        /**
+         * 队列已满时能否丢弃这个任务；已经做了一部分工作的任务可以返回false，调度器关闭时仍然会被丢弃
+         */
+        protected boolean isDroppable() {
+            return true;
+        }
+
+        /**
+         * 因为队列已满或者调度器关闭而被丢弃时回调，在提交任务的线程中执行
+         */
+        protected void onDropped() {
+        }
+    }
+}
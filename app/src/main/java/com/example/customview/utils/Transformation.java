@@ -0,0 +1,30 @@
+package com.example.customview.utils;
+
+
+import android.graphics.Bitmap;
+
+
+/**
+ * 图片变换（缩放、裁剪、圆形、圆角、描边等），在加载器的工作线程中执行，结果和变换的key一起放入内存缓存
+ *
+ * date: 2018/9/10
+ * user: jackxu
+ */
+public interface Transformation {
+
+    /**
+     * 对source做变换
+     *
+     * @param pool   用来分配结果bitmap，可以复用已经回收的内存
+     * @param source 原图
+     * @param width  目标宽度
+     * @param height 目标高度
+     * @return 变换后的bitmap，不需要变换时直接返回source
+     */
+    Bitmap transform(BitmapPool pool, Bitmap source, int width, int height);
+
+    /**
+     * 唯一标识这个变换及其参数，用于拼接缓存的key
+     */
+    String key();
+}
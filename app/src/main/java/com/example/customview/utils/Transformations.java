@@ -0,0 +1,293 @@
+package com.example.customview.utils;
+
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.os.Build;
+
+import java.util.List;
+
+
+/**
+ * 常用的图片变换
+ *
+ * date: 2018/9/10
+ * user: jackxu
+ */
+public class Transformations {
+
+    private static final int PAINT_FLAGS = Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG;
+
+    /**
+     * 拉伸到目标大小
+     */
+    public static Transformation scale() {
+        return new ScaleTransformation();
+    }
+
+    /**
+     * 等比缩放后居中裁剪到目标大小
+     */
+    public static Transformation centerCrop() {
+        return new CenterCropTransformation();
+    }
+
+    /**
+     * 居中裁剪成直径为min(width, height)的圆形
+     */
+    public static Transformation circle() {
+        return new CircleTransformation();
+    }
+
+    /**
+     * 居中裁剪到目标大小并添加圆角
+     *
+     * @param radius 圆角半径，px
+     */
+    public static Transformation roundedCorners(int radius) {
+        return new RoundedCornersTransformation(radius);
+    }
+
+    /**
+     * 沿着圆形或者圆角矩形描边，放在circle/roundedCorners后面
+     *
+     * @param borderWidth 描边宽度，px
+     * @param color       描边颜色
+     * @param radius      圆角半径，px；小于0表示圆形
+     */
+    public static Transformation border(int borderWidth, int color, int radius) {
+        return new BorderTransformation(borderWidth, color, radius);
+    }
+
+    /**
+     * 依次执行一组变换，中间结果放回复用池
+     */
+    static Bitmap apply(List<Transformation> transformations, BitmapPool pool, Bitmap source,
+            int width, int height) {
+        Bitmap result = source;
+        for (Transformation transformation : transformations) {
+            Bitmap transformed = transformation.transform(pool, result, width, height);
+            if (transformed != result && result != source) {
+                pool.put(result);
+            }
+            result = transformed;
+        }
+        return result;
+    }
+
+    /**
+     * 第一个变换是否居中裁剪，是的话原图只有中间的区域会被用到
+     */
+    static boolean isCenterCrop(List<Transformation> transformations) {
+        if (transformations == null || transformations.isEmpty()) {
+            return false;
+        }
+        Transformation first = transformations.get(0);
+        return first instanceof CenterCropTransformation || first instanceof CircleTransformation
+                || first instanceof RoundedCornersTransformation;
+    }
+
+    /**
+     * 一组变换的key，没有变换时为空字符串
+     */
+    static String key(List<Transformation> transformations) {
+        if (transformations == null || transformations.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Transformation transformation : transformations) {
+            sb.append('#').append(transformation.key());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 变换的结果是否需要透明通道：圆形、圆角以及不认识的自定义变换需要，
+     * 只有缩放和居中裁剪的结果可以保持RGB_565
+     */
+    static boolean requiresAlpha(List<Transformation> transformations) {
+        if (transformations == null) {
+            return false;
+        }
+        for (Transformation transformation : transformations) {
+            if (!(transformation instanceof ScaleTransformation)
+                    && !(transformation instanceof CenterCropTransformation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从复用池中取一个透明的ARGB_8888 bitmap，没有则新建
+     */
+    static Bitmap obtainBitmap(BitmapPool pool, int width, int height) {
+        return obtainBitmap(pool, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 从复用池中取一个指定格式的bitmap，没有则新建；ARGB_8888时擦除成透明
+     */
+    static Bitmap obtainBitmap(BitmapPool pool, int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = pool != null ? pool.get(width, height, config) : null;
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && (bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+            bitmap.reconfigure(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * 计算把source等比缩放并居中裁剪到width x height的矩阵
+     */
+    static Matrix centerCropMatrix(Bitmap source, int width, int height) {
+        float scale;
+        float dx = 0, dy = 0;
+        if (source.getWidth() * height > width * source.getHeight()) {
+            scale = (float) height / (float) source.getHeight();
+            dx = (width - source.getWidth() * scale) * 0.5f;
+        } else {
+            scale = (float) width / (float) source.getWidth();
+            dy = (height - source.getHeight() * scale) * 0.5f;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((int) (dx + 0.5f), (int) (dy + 0.5f));
+        return matrix;
+    }
+
+    /**
+     * 用BitmapShader一次完成居中裁剪和形状裁剪，不需要中间的缩放bitmap
+     */
+    private static Bitmap drawShape(BitmapPool pool, Bitmap source, int width, int height, float radius,
+            boolean isCircle) {
+        Bitmap target = obtainBitmap(pool, width, height);
+        BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        shader.setLocalMatrix(centerCropMatrix(source, width, height));
+        Paint paint = new Paint(PAINT_FLAGS);
+        paint.setShader(shader);
+        Canvas canvas = new Canvas(target);
+        if (isCircle) {
+            canvas.drawCircle(width / 2f, height / 2f, Math.min(width, height) / 2f, paint);
+        } else {
+            canvas.drawRoundRect(new RectF(0, 0, width, height), radius, radius, paint);
+        }
+        return target;
+    }
+
+    private static class ScaleTransformation implements Transformation {
+        @Override
+        public Bitmap transform(BitmapPool pool, Bitmap source, int width, int height) {
+            if (source.getWidth() == width && source.getHeight() == height) {
+                return source;
+            }
+            return Bitmap.createScaledBitmap(source, width, height, true);
+        }
+
+        @Override
+        public String key() {
+            return "scale";
+        }
+    }
+
+    private static class CenterCropTransformation implements Transformation {
+        @Override
+        public Bitmap transform(BitmapPool pool, Bitmap source, int width, int height) {
+            if (source.getWidth() == width && source.getHeight() == height) {
+                return source;
+            }
+            Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+            // 复用的bitmap带着上一张图的像素，source有透明部分时会透出来，取出时先擦除
+            Bitmap target = obtainBitmap(pool, width, height, config);
+            Canvas canvas = new Canvas(target);
+            canvas.drawBitmap(source, centerCropMatrix(source, width, height), new Paint(PAINT_FLAGS));
+            return target;
+        }
+
+        @Override
+        public String key() {
+            return "centerCrop";
+        }
+    }
+
+    private static class CircleTransformation implements Transformation {
+        @Override
+        public Bitmap transform(BitmapPool pool, Bitmap source, int width, int height) {
+            int min = Math.min(width, height);
+            return drawShape(pool, source, min, min, 0, true);
+        }
+
+        @Override
+        public String key() {
+            return "circle";
+        }
+    }
+
+    private static class RoundedCornersTransformation implements Transformation {
+        private final int mRadius;
+
+        RoundedCornersTransformation(int radius) {
+            mRadius = radius;
+        }
+
+        @Override
+        public Bitmap transform(BitmapPool pool, Bitmap source, int width, int height) {
+            return drawShape(pool, source, width, height, mRadius, false);
+        }
+
+        @Override
+        public String key() {
+            return "round(" + mRadius + ")";
+        }
+    }
+
+    private static class BorderTransformation implements Transformation {
+        private final int mBorderWidth;
+        private final int mColor;
+        private final int mRadius;
+
+        BorderTransformation(int borderWidth, int color, int radius) {
+            mBorderWidth = borderWidth;
+            mColor = color;
+            mRadius = radius;
+        }
+
+        @Override
+        public Bitmap transform(BitmapPool pool, Bitmap source, int width, int height) {
+            if (mBorderWidth <= 0) {
+                return source;
+            }
+            Bitmap target = source.isMutable() ? source : source.copy(Bitmap.Config.ARGB_8888, true);
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeWidth(mBorderWidth);
+            paint.setColor(mColor);
+            float inset = mBorderWidth / 2f;
+            Canvas canvas = new Canvas(target);
+            int w = target.getWidth();
+            int h = target.getHeight();
+            if (mRadius < 0) {
+                canvas.drawCircle(w / 2f, h / 2f, Math.min(w, h) / 2f - inset, paint);
+            } else {
+                RectF rect = new RectF(inset, inset, w - inset, h - inset);
+                canvas.drawRoundRect(rect, mRadius, mRadius, paint);
+            }
+            return target;
+        }
+
+        @Override
+        public String key() {
+            return "border(" + mBorderWidth + "," + Integer.toHexString(mColor) + "," + mRadius + ")";
+        }
+    }
+}
@@ -3,22 +3,27 @@ package com.example.customview.view;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PixelFormat;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
 import com.example.customview.R;
 import com.example.customview.utils.MyImageLoader;
+import com.example.customview.utils.RequestOptions;
 
 
 /**
@@ -39,9 +44,23 @@ public class CustomImageView extends ImageView {
     private static final int TYPE_ROUND_URL = 4;
 
     /**
-     * 图片
+     * RENDER_MODE_BITMAP: 在加载线程中生成圆形/圆角的bitmap，onDraw直接绘制
+     * RENDER_MODE_SHADER: 加载原图，onDraw用缓存的BitmapShader画出形状，不生成新的bitmap
      */
-    private Bitmap mSrc;
+    private int mRenderMode;
+    public static final int RENDER_MODE_BITMAP = 0;
+    public static final int RENDER_MODE_SHADER = 1;
+
+    /**
+     * 图片资源，交给MyImageLoader在工作线程中解码和裁剪
+     */
+    private int mSrcResId;
+
+    /**
+     * 图片资源的原始宽高，只解析边界，用于wrap_content时的测量
+     */
+    private int mSrcWidth;
+    private int mSrcHeight;
 
     /**
      * 圆角的大小
@@ -59,6 +78,37 @@ public class CustomImageView extends ImageView {
 
     private String mUrlSrc;
 
+    /**
+     * 网络图片先显示缩略图，再替换成完整的图片
+     */
+    private boolean mProgressive;
+
+    /**
+     * 描边的宽度和颜色
+     */
+    private int mBorderWidth;
+    private int mBorderColor = Color.WHITE;
+
+    /**
+     * shader模式下绘制用的对象，只在图片或大小变化时更新，onDraw中不分配对象
+     */
+    private final Paint mBitmapPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    private final Paint mBorderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Matrix mShaderMatrix = new Matrix();
+    private final RectF mDrawableRect = new RectF();
+    private final RectF mBorderRect = new RectF();
+    private Bitmap mShaderBitmap;
+    private BitmapShader mBitmapShader;
+
+    /**
+     * 是否在屏幕上；变化时通知MyImageLoader，不在屏幕上的请求降到预加载的优先级。
+     * 没有attach过的控件认为在屏幕上
+     */
+    private boolean mOnScreen = true;
+    private boolean isOnScreenStale;  // 没有在加载的请求时不跟踪滚动，下次加载时再重新判断
+    private final Rect mVisibleRect = new Rect();
+    private final VisibilityObserver mVisibilityObserver = new VisibilityObserver();
+
 
 
 
@@ -84,7 +134,12 @@ public class CustomImageView extends ImageView {
             int attr = a.getIndex(i);
             switch (attr) {
                 case R.styleable.CustomImageView_src:
-                    mSrc = BitmapFactory.decodeResource(getResources(), a.getResourceId(attr, 0));
+                    mSrcResId = a.getResourceId(attr, 0);
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeResource(getResources(), mSrcResId, options);
+                    mSrcWidth = Math.max(options.outWidth, 0);
+                    mSrcHeight = Math.max(options.outHeight, 0);
                     break;
                 case R.styleable.CustomImageView_type:
                     mType = a.getInt(attr, 0);// 默认为Circle
@@ -95,6 +150,18 @@ public class CustomImageView extends ImageView {
                                     10f,
                                     getResources().getDisplayMetrics()));// 默认为10DP
                     break;
+                case R.styleable.CustomImageView_borderWidth:
+                    mBorderWidth = a.getDimensionPixelSize(attr, 0);
+                    break;
+                case R.styleable.CustomImageView_borderColor:
+                    mBorderColor = a.getColor(attr, Color.WHITE);
+                    break;
+                case R.styleable.CustomImageView_renderMode:
+                    mRenderMode = a.getInt(attr, RENDER_MODE_BITMAP);
+                    break;
+                case R.styleable.CustomImageView_progressive:
+                    mProgressive = a.getBoolean(attr, false);
+                    break;
                 case R.styleable.CustomImageView_url_src:
                     mType = Integer.parseInt(a.getString(R.styleable.CustomImageView_type));
                     mUrlSrc = a.getString(R.styleable.CustomImageView_url_src);
@@ -104,6 +171,11 @@ public class CustomImageView extends ImageView {
             }
         }
         a.recycle();
+
+        mBorderPaint.setStyle(Paint.Style.STROKE);
+        mBorderPaint.setStrokeWidth(mBorderWidth);
+        mBorderPaint.setColor(mBorderColor);
+        updateShader();
     }
 
 
@@ -125,7 +197,7 @@ public class CustomImageView extends ImageView {
             mWidth = specSize;
         } else {
             // 由图片决定的宽
-            int desireByImg = getPaddingLeft() + getPaddingRight() + mSrc.getWidth();
+            int desireByImg = getPaddingLeft() + getPaddingRight() + mSrcWidth;
             if (specMode == MeasureSpec.AT_MOST) {// wrap_content
                 mWidth = Math.min(desireByImg, specSize);
             } else {
@@ -139,7 +211,7 @@ public class CustomImageView extends ImageView {
         if (specMode == MeasureSpec.EXACTLY){   // match_parent , accurate
             mHeight = specSize;
         } else {
-            int desire = getPaddingTop() + getPaddingBottom() + mSrc.getHeight();
+            int desire = getPaddingTop() + getPaddingBottom() + mSrcHeight;
 
             if (specMode == MeasureSpec.AT_MOST){// wrap_content
                 mHeight = Math.min(desire, specSize);
@@ -152,58 +224,72 @@ public class CustomImageView extends ImageView {
 
 
     /**
-     * 绘制
+     * 大小确定后开始加载，变换后的图片大小和控件一致
      */
     @Override
-    protected void onDraw(final Canvas canvas) {
-        MyImageLoader myImageLoader = null;
-        Bitmap bitmap = null;
-        int min = 0;
-        final ImageView imageView = ((ImageView) this);
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateShaderMatrix();
+        if (w > 0 && h > 0) {
+            bindImage();
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnGlobalLayoutListener(mVisibilityObserver);
+        observer.addOnScrollChangedListener(mVisibilityObserver);
+        mOnScreen = true;  // 布局完成后再由mVisibilityObserver更正
+        isOnScreenStale = false;
+        if (getWidth() > 0 && getHeight() > 0) {
+            bindImage();  // detach时取消了加载，重新attach需要再绑定一次
+        }
+    }
+
+    /**
+     * 设置网络图片地址，列表复用时用来重新绑定
+     */
+    public void setUrlSrc(String url) {
+        mUrlSrc = url;
+        if (getWidth() > 0 && getHeight() > 0) {
+            bindImage();
+        }
+    }
+
+    /**
+     * 把图片加载交给MyImageLoader：解码、缩放、裁剪圆形或圆角都在工作线程中完成，
+     * 结果按(图片, 大小, 变换)缓存，onDraw只需要绘制现成的bitmap
+     */
+    private void bindImage() {
+        MyImageLoader myImageLoader = MyImageLoader.getInstance();
         switch (mType) {
-            // 如果是TYPE_CIRCLE绘制圆形
             case TYPE_CIRCLE:
-                min = Math.min(mWidth, mHeight);
-                //长度如果不一致，按小的值进行压缩
-                mSrc = Bitmap.createScaledBitmap(mSrc, min, min, false);
-                canvas.drawBitmap(createCircleImage(mSrc, min), 0, 0, null);
+                if (mSrcResId != 0) {
+                    myImageLoader.loadCircleImage(MyImageLoader.resourcePath(mSrcResId), this, false, null);
+                }
                 break;
             case TYPE_ROUND:
-                canvas.drawBitmap(createRoundConnerImage(mSrc), 0, 0, null);
+                if (mSrcResId != 0) {
+                    myImageLoader.loadRoundImage(MyImageLoader.resourcePath(mSrcResId), this, false, null);
+                }
                 break;
             case TYPE_URL:
-                myImageLoader = MyImageLoader.getInstance();
-                myImageLoader.loadImage(mUrlSrc, this, true);
-                super.onDraw(canvas);   //必须调用super才会绘制图片
+                if (mUrlSrc != null) {
+                    myImageLoader.loadImage(mUrlSrc, this, true,
+                            mProgressive ? new RequestOptions().progressive(true) : null);
+                }
                 break;
             case TYPE_CIRCLE_URL:
-                myImageLoader = MyImageLoader.getInstance();
-                myImageLoader.loadCircleImage(mUrlSrc, this, true,
-                        new MyImageLoader.ILoadingComplete() {
-                    @Override
-                    public void onLoadFinished() {
-                        int min = Math.min(mWidth, mHeight);
-//                        if(imageView.getDrawable() != null){  // TODO: 2018/8/29 会crash
-//                            Bitmap bitmap = getBitmap(imageView.getDrawable());
-//                            canvas.drawBitmap(createCircleImage(bitmap, min), 0, 0, null);
-//                        }
-                    }
-                });
-                super.onDraw(canvas);
+                if (mUrlSrc != null) {
+                    myImageLoader.loadCircleImage(mUrlSrc, this, true, null);
+                }
                 break;
             case TYPE_ROUND_URL:
-                myImageLoader = MyImageLoader.getInstance();
-                myImageLoader.loadRoundImage(mUrlSrc, this, true,
-                        new MyImageLoader.ILoadingComplete() {
-                            @Override
-                            public void onLoadFinished() {
-//                                if(imageView.getDrawable() != null){  // TODO: 2018/8/29  会crash
-//                                    Bitmap bitmap = getBitmap(imageView.getDrawable());
-//                                    canvas.drawBitmap(createRoundConnerImage(mSrc), 0, 0, null);
-//                                }
-                            }
-                        });
-                super.onDraw(canvas);
+                if (mUrlSrc != null) {
+                    myImageLoader.loadRoundImage(mUrlSrc, this, true, null);
+                }
                 break;
             default:
                 break;
@@ -211,63 +297,210 @@ public class CustomImageView extends ImageView {
     }
 
 
-    private Bitmap getBitmap(Drawable drawable) {
-        Bitmap bitmap = Bitmap.createBitmap(
-                drawable.getIntrinsicWidth(),
-                drawable.getIntrinsicHeight(),
-                drawable.getOpacity() != PixelFormat.OPAQUE ? Bitmap.Config.ARGB_8888
-                        : Bitmap.Config.RGB_565);
-        Canvas canvas = new Canvas(bitmap);
-        //canvas.setBitmap(bitmap);
-        drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
-        drawable.draw(canvas);
-        return bitmap;
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        updateShader();
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        super.setImageResource(resId);
+        updateShader();
+    }
+
+    /**
+     * 图片变化时重建shader，同一张图片不重复创建
+     */
+    private void updateShader() {
+        if (mBitmapPaint == null) {
+            return;  // 父类构造函数中设置图片时字段还没有初始化
+        }
+        Bitmap bitmap = null;
+        if (mRenderMode == RENDER_MODE_SHADER) {
+            Drawable drawable = getDrawable();
+            if (drawable instanceof BitmapDrawable) {
+                bitmap = ((BitmapDrawable) drawable).getBitmap();
+            }
+        }
+        if (bitmap == mShaderBitmap) {
+            return;
+        }
+        mShaderBitmap = bitmap;
+        mBitmapShader = bitmap == null ? null
+                : new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        mBitmapPaint.setShader(mBitmapShader);
+        updateShaderMatrix();
+        invalidate();
+    }
+
+    /**
+     * 计算绘制区域，并把图片centerCrop到绘制区域中
+     */
+    private void updateShaderMatrix() {
+        if (mBitmapShader == null) {
+            return;
+        }
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (isCircle()) {
+            // 圆形取内切的正方形
+            float size = Math.min(width, height);
+            left += (width - size) / 2;
+            top += (height - size) / 2;
+            width = size;
+            height = size;
+        }
+        float half = mBorderWidth / 2f;
+        mBorderRect.set(left + half, top + half, left + width - half, top + height - half);
+        mDrawableRect.set(left + mBorderWidth, top + mBorderWidth,
+                left + width - mBorderWidth, top + height - mBorderWidth);
+
+        float bitmapWidth = mShaderBitmap.getWidth();
+        float bitmapHeight = mShaderBitmap.getHeight();
+        float scale = Math.max(mDrawableRect.width() / bitmapWidth, mDrawableRect.height() / bitmapHeight);
+        mShaderMatrix.setScale(scale, scale);
+        mShaderMatrix.postTranslate(
+                (int) (mDrawableRect.left + (mDrawableRect.width() - bitmapWidth * scale) / 2 + 0.5f),
+                (int) (mDrawableRect.top + (mDrawableRect.height() - bitmapHeight * scale) / 2 + 0.5f));
+        mBitmapShader.setLocalMatrix(mShaderMatrix);
+    }
+
+    private boolean isCircle() {
+        return mType == TYPE_CIRCLE || mType == TYPE_CIRCLE_URL;
+    }
+
+    private boolean isRound() {
+        return mType == TYPE_ROUND || mType == TYPE_ROUND_URL;
     }
 
 
+    /**
+     * 绘制：bitmap模式下图片已经在工作线程中处理好；shader模式下直接用缓存的shader画出形状。
+     * 两种模式都不在这里分配对象
+     */
+    @Override
+    protected void onDraw(final Canvas canvas) {
+        if (mBitmapShader == null || !(isCircle() || isRound())) {
+            super.onDraw(canvas);   //必须调用super才会绘制图片
+            return;
+        }
+        if (isCircle()) {
+            canvas.drawOval(mDrawableRect, mBitmapPaint);
+            if (mBorderWidth > 0) {
+                canvas.drawOval(mBorderRect, mBorderPaint);
+            }
+        } else {
+            float radius = Math.max(mRadius - mBorderWidth, 0);
+            canvas.drawRoundRect(mDrawableRect, radius, radius, mBitmapPaint);
+            if (mBorderWidth > 0) {
+                float borderRadius = Math.max(mRadius - mBorderWidth / 2f, 0);
+                canvas.drawRoundRect(mBorderRect, borderRadius, borderRadius, mBorderPaint);
+            }
+        }
+    }
 
 
     /**
-     * 根据原图和变长绘制圆形图片
+     * 离开窗口（比如列表项被回收）时取消还没有完成的加载；显示的bitmap仍然持有引用，
+     * detach的控件还可能被绘制（列表的缓存、过渡动画、截图），换了图片或者控件被回收后才会进入复用池。
+     * 重新attach时再绑定一次
      */
-    private Bitmap createCircleImage(Bitmap source, int min) {
-        final Paint paint = new Paint();
-        paint.setAntiAlias(true);
-        Bitmap target = Bitmap.createBitmap(min, min, Config.ARGB_8888);
-        /**
-         * 产生一个同样大小的画布
-         */
-        Canvas canvas = new Canvas(target);
-        /**
-         * 首先绘制圆形
-         */
-        canvas.drawCircle(min / 2, min / 2, min / 2, paint);
-        /**
-         * 使用SRC_IN，参考上面的说明
-         */
-        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-        /**
-         * 绘制图片
-         */
-        canvas.drawBitmap(source, 0, 0, paint);
-        return target;
+    @Override
+    @SuppressWarnings("deprecation")  // JELLY_BEAN以下只有removeGlobalOnLayoutListener
+    protected void onDetachedFromWindow() {
+        ViewTreeObserver observer = getViewTreeObserver();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            observer.removeOnGlobalLayoutListener(mVisibilityObserver);
+        } else {
+            observer.removeGlobalOnLayoutListener(mVisibilityObserver);
+        }
+        observer.removeOnScrollChangedListener(mVisibilityObserver);
+        super.onDetachedFromWindow();
+        MyImageLoader.getInstance().cancelRequest(this);
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateOnScreen();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateOnScreen();
+    }
+
+    /**
+     * 重新判断是否在屏幕上，只有在加载中的请求才需要：滚动时每一帧都会回调，
+     * 没有请求时只标记一下，不计算可见区域，也不通知MyImageLoader
+     */
+    private void updateOnScreen() {
+        if (mVisibilityObserver == null || getWindowToken() == null) {
+            return;  // 父类的构造函数中还没有初始化，或者没有attach（detach时已经取消了加载）
+        }
+        if (!MyImageLoader.getInstance().hasPendingRequest(this)) {
+            isOnScreenStale = true;
+            return;
+        }
+        boolean onScreen = computeOnScreen();
+        isOnScreenStale = false;
+        if (onScreen != mOnScreen) {
+            mOnScreen = onScreen;
+            MyImageLoader.getInstance().setOnScreen(this, onScreen);
+        }
+    }
+
+    /**
+     * 自己和所有父View可见、窗口可见，并且有一部分没有被滚出父View
+     */
+    private boolean computeOnScreen() {
+        return getWindowVisibility() == VISIBLE && isShown() && getGlobalVisibleRect(mVisibleRect);
+    }
+
+    public boolean isOnScreen() {
+        if (isOnScreenStale && getWindowToken() != null) {
+            mOnScreen = computeOnScreen();
+            isOnScreenStale = false;
+        }
+        return mOnScreen;
     }
 
     /**
-     * 根据原图添加圆角
+     * 布局变化和滚动时重新判断是否在屏幕上，例如ScrollView中的控件滚出屏幕后仍然是attach的
      */
-    private Bitmap createRoundConnerImage(Bitmap source) {
-        final Paint paint = new Paint();
-        paint.setAntiAlias(true);
-        Bitmap target = Bitmap.createBitmap(mWidth, mHeight, Config.ARGB_8888);
-        Canvas canvas = new Canvas(target);
-        RectF rect = new RectF(0, 0, source.getWidth(), source.getHeight());
-        canvas.drawRoundRect(rect, mRadius, mRadius, paint);
-        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-        canvas.drawBitmap(source, 0, 0, paint);
-        return target;
+    private class VisibilityObserver implements ViewTreeObserver.OnGlobalLayoutListener,
+            ViewTreeObserver.OnScrollChangedListener {
+
+        @Override
+        public void onGlobalLayout() {
+            updateOnScreen();
+        }
+
+        @Override
+        public void onScrollChanged() {
+            updateOnScreen();
+        }
     }
 
 
+    public int getRenderMode() {
+        return mRenderMode;
+    }
+
+    public int getBorderRadius() {
+        return mRadius;
+    }
+
+    public int getBorderWidth() {
+        return mBorderWidth;
+    }
+
+    public int getBorderColor() {
+        return mBorderColor;
+    }
 
 }
\ No newline at end of file
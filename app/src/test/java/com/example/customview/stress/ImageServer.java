@@ -0,0 +1,328 @@
+package com.example.customview.stress;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * 只监听本机的HTTP服务器，代替真实的图片服务器：GET /img/{id} 返回SyntheticImages中的图片。
+ *
+ * 支持keep-alive、ETag/If-None-Match和Last-Modified/If-Modified-Since（返回304），
+ * Cache-Control的max-age可以配置，可以按Accept-Encoding用gzip压缩响应体，
+ * 和加载器的条件请求、连接复用、解压都能对上。每个连接一个线程，只实现压测和测试用得到的部分
+ *
+ * date: 2018/9/20
+ * user: jackxu
+ */
+public final class ImageServer implements Closeable {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String PATH_PREFIX = "/img/";
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+    // 所有图片的Last-Modified，HTTP日期精确到秒
+    private static final long LAST_MODIFIED = 1536000000000L;
+
+    private final SyntheticImages mImages;
+    private final int mMaxAgeSeconds;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mNotModified = new AtomicLong();
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mActiveRequests = new AtomicInteger();
+    private final AtomicLong mGzipResponses = new AtomicLong();
+
+    private volatile boolean isEtagEnabled = true;
+    private volatile boolean isGzipEnabled;
+
+    /**
+     * @param images        图片
+     * @param maxAgeSeconds 响应的Cache-Control: max-age，0表示每次都要重新验证
+     */
+    public ImageServer(SyntheticImages images, int maxAgeSeconds) throws IOException {
+        mImages = images;
+        mMaxAgeSeconds = maxAgeSeconds;
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * 是否返回ETag，关闭后只能用Last-Modified做条件请求，默认开启
+     */
+    public void setEtagEnabled(boolean enabled) {
+        isEtagEnabled = enabled;
+    }
+
+    /**
+     * 客户端声明支持时是否用gzip压缩响应体，默认关闭
+     */
+    public void setGzipEnabled(boolean enabled) {
+        isGzipEnabled = enabled;
+    }
+
+    public void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public String url(int id) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + PATH_PREFIX + id;
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    /**
+     * 用gzip压缩了响应体的请求数
+     */
+    public long getGzipResponseCount() {
+        return mGzipResponses.get();
+    }
+
+    /**
+     * 发送的响应体字节数（压缩后的），不包括响应头
+     */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /**
+     * 图片的Last-Modified
+     */
+    public long getLastModified() {
+        return LAST_MODIFIED;
+    }
+
+    /**
+     * 正在处理（包括在等待模拟延迟）的请求数
+     */
+    public int getActiveRequests() {
+        return mActiveRequests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;  // 已经关闭
+            }
+            mConnections.incrementAndGet();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * 同一个连接上依次处理请求，直到客户端关闭
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                String ifNoneMatch = null;
+                String ifModifiedSince = null;
+                boolean acceptGzip = false;
+                boolean close = false;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon <= 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                    String value = line.substring(colon + 1).trim();
+                    if ("if-none-match".equals(name)) {
+                        ifNoneMatch = value;
+                    } else if ("if-modified-since".equals(name)) {
+                        ifModifiedSince = value;
+                    } else if ("accept-encoding".equals(name)) {
+                        acceptGzip = value.toLowerCase(Locale.US).contains("gzip");
+                    } else if ("connection".equals(name) && "close".equalsIgnoreCase(value)) {
+                        close = true;
+                    }
+                }
+                mActiveRequests.incrementAndGet();
+                try {
+                    respond(requestLine, ifNoneMatch, ifModifiedSince, acceptGzip, out);
+                } finally {
+                    mActiveRequests.decrementAndGet();
+                }
+                if (close) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // 客户端断开（请求被取消）
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void respond(String requestLine, String ifNoneMatch, String ifModifiedSince, boolean acceptGzip,
+            OutputStream out) throws IOException, InterruptedException {
+        mRequests.incrementAndGet();
+        String[] parts = requestLine.split(" ");
+        SyntheticImages.Image image = null;
+        int id = -1;
+        if (parts.length >= 2 && "GET".equals(parts[0]) && parts[1].startsWith(PATH_PREFIX)) {
+            try {
+                id = Integer.parseInt(parts[1].substring(PATH_PREFIX.length()));
+                image = mImages.get(id);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (image == null) {
+            writeHead(out, "404 Not Found", "Content-Length: 0\r\n");
+            out.flush();
+            return;
+        }
+        if (image.delayMillis > 0) {
+            Thread.sleep(image.delayMillis);
+        }
+        String etag = isEtagEnabled ? "\"img-" + id + "\"" : null;
+        String cacheHeaders = (etag != null ? "ETag: " + etag + "\r\n" : "")
+                + "Last-Modified: " + formatDate(LAST_MODIFIED) + "\r\n"
+                + "Cache-Control: max-age=" + mMaxAgeSeconds + "\r\n";
+        if (isNotModified(etag, ifNoneMatch, ifModifiedSince)) {
+            mNotModified.incrementAndGet();
+            writeHead(out, "304 Not Modified", cacheHeaders);
+            out.flush();
+            return;
+        }
+        byte[] body = image.data;
+        String encodingHeader = "";
+        if (acceptGzip && isGzipEnabled) {
+            body = gzip(body);
+            encodingHeader = "Content-Encoding: gzip\r\n";
+            mGzipResponses.incrementAndGet();
+        }
+        writeHead(out, "200 OK", cacheHeaders + encodingHeader
+                + "Content-Type: " + image.contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n");
+        out.write(body);
+        out.flush();
+        mBytesServed.addAndGet(body.length);
+    }
+
+    /**
+     * 有If-None-Match时只比较ETag，否则比较If-Modified-Since
+     */
+    private static boolean isNotModified(String etag, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals(etag);
+        }
+        if (ifModifiedSince != null) {
+            try {
+                return parseDate(ifModifiedSince) >= LAST_MODIFIED;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String formatDate(long time) {
+        return newDateFormat().format(new Date(time));
+    }
+
+    private static long parseDate(String date) throws ParseException {
+        return newDateFormat().parse(date).getTime();
+    }
+
+    private static SimpleDateFormat newDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        try {
+            gzip.write(data);
+        } finally {
+            gzip.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeHead(OutputStream out, String status, String headers) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n").getBytes(US_ASCII));
+    }
+
+    /**
+     * 读取一行，去掉行尾的\r\n；连接已经关闭时返回null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, US_ASCII);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+}
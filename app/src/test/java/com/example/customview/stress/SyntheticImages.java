@@ -0,0 +1,178 @@
+package com.example.customview.stress;
+
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+
+/**
+ * 压测用的图片：每个id对应一张固定的图片和固定的服务器延迟，同一个seed每次生成的结果都一样。
+ *
+ * 尺寸按列表页的比例分布：大部分是头像大小的缩略图，其次是卡片大图，少量高清图和带透明通道的PNG；
+ * 延迟大部分在几十毫秒，少数请求有几百毫秒的长尾。
+ * 图片在JVM上用ImageIO真正编码，Robolectric解码时能读出正确的宽高
+ *
+ * date: 2018/9/20
+ * user: jackxu
+ */
+public final class SyntheticImages {
+
+    public static final class Image {
+        public final byte[] data;
+        public final String contentType;
+        public final int delayMillis;  // 服务器返回响应前等待的时间
+
+        Image(byte[] data, String contentType, int delayMillis) {
+            this.data = data;
+            this.contentType = contentType;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    private static final int MAX_SEGMENT_LENGTH = 65533;  // JPEG段的长度字段是16位，包括它自己
+
+    private final Image[] mImages;
+    private final double[] mCumulativeWeights;  // 按Zipf分布选图，排名靠前的图片被请求得更多
+
+    /**
+     * @param count         图片的数量
+     * @param seed          随机种子
+     * @param latencyMillis 平均延迟，0表示没有延迟
+     */
+    public SyntheticImages(int count, long seed, int latencyMillis) throws IOException {
+        mImages = new Image[count];
+        for (int i = 0; i < count; i++) {
+            mImages[i] = generate(new Random(seed * 31 + i), latencyMillis);
+        }
+        mCumulativeWeights = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += 1.0 / (i + 1);
+            mCumulativeWeights[i] = sum;
+        }
+        for (int i = 0; i < count; i++) {
+            mCumulativeWeights[i] /= sum;
+        }
+    }
+
+    public int size() {
+        return mImages.length;
+    }
+
+    public Image get(int id) {
+        return id >= 0 && id < mImages.length ? mImages[id] : null;
+    }
+
+    /**
+     * 在id对应的JPEG的SOI之后插入paddingBytes字节的APP1段，模拟带大块EXIF的照片，像素和宽高不变
+     */
+    public void padJpegHeader(int id, int paddingBytes) {
+        Image image = mImages[id];
+        if (!"image/jpeg".equals(image.contentType)) {
+            throw new IllegalArgumentException("not a jpeg: " + id);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.data.length + paddingBytes + 1024);
+        out.write(image.data, 0, 2);  // SOI
+        byte[] segment = new byte[MAX_SEGMENT_LENGTH];
+        int remaining = paddingBytes;
+        while (remaining > 0) {
+            int length = Math.min(remaining, MAX_SEGMENT_LENGTH);
+            out.write(0xFF);
+            out.write(0xE1);
+            out.write((length + 2) >> 8);  // 段长度包括这两个字节
+            out.write((length + 2) & 0xFF);
+            out.write(segment, 0, length);
+            remaining -= length;
+        }
+        out.write(image.data, 2, image.data.length - 2);
+        mImages[id] = new Image(out.toByteArray(), image.contentType, image.delayMillis);
+    }
+
+    /**
+     * 在id对应的图片末尾追加trailerBytes字节，解码器读完图片后不会再读它们，模拟带尾部数据的文件
+     */
+    public void appendTrailer(int id, int trailerBytes) {
+        Image image = mImages[id];
+        byte[] data = new byte[image.data.length + trailerBytes];
+        System.arraycopy(image.data, 0, data, 0, image.data.length);
+        mImages[id] = new Image(data, image.contentType, image.delayMillis);
+    }
+
+    /**
+     * 按Zipf分布随机选一张图片的id
+     */
+    int pick(Random random) {
+        double r = random.nextDouble();
+        int low = 0;
+        int high = mCumulativeWeights.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mCumulativeWeights[mid] < r) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static Image generate(Random random, int latencyMillis) throws IOException {
+        int kind = random.nextInt(10);
+        int width;
+        int height;
+        boolean alpha = false;
+        if (kind < 4) {  // 头像
+            width = 96;
+            height = 96;
+        } else if (kind < 7) {  // 列表中的卡片
+            width = 480;
+            height = 320;
+        } else if (kind < 9) {  // 详情页的大图
+            width = 1080;
+            height = 720;
+        } else {  // 带透明通道的图标
+            width = 256;
+            height = 256;
+            alpha = true;
+        }
+        BufferedImage image = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, randomColor(random, alpha), width, height,
+                    randomColor(random, alpha)));
+            g.fillRect(0, 0, width, height);
+            // 加一些色块，压缩后的大小接近真实的照片，不会被压得过小
+            for (int i = 0; i < 40; i++) {
+                g.setColor(randomColor(random, alpha));
+                g.fillRect(random.nextInt(width), random.nextInt(height),
+                        1 + random.nextInt(width / 4), 1 + random.nextInt(height / 4));
+            }
+        } finally {
+            g.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, alpha ? "png" : "jpg", out);
+
+        int delay = 0;
+        if (latencyMillis > 0) {
+            delay = random.nextInt(latencyMillis * 2);
+            if (random.nextInt(20) == 0) {
+                delay += latencyMillis * 10;  // 5%的长尾
+            }
+        }
+        return new Image(out.toByteArray(), alpha ? "image/png" : "image/jpeg", delay);
+    }
+
+    private static Color randomColor(Random random, boolean alpha) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                alpha ? random.nextInt(256) : 255);
+    }
+}
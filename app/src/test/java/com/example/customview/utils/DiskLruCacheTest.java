@@ -0,0 +1,273 @@
+package com.example.customview.utils;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * DiskLruCache的journal回放、崩溃后的恢复和按字节数淘汰，纯JVM测试
+ *
+ * date: 2018/9/4
+ * user: jackxu
+ */
+public class DiskLruCacheTest {
+
+    private static final int APP_VERSION = 100;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File cacheDir;
+    private File journalFile;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = tempDir.newFolder("cache");
+        journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void writeAndReadEntry() throws IOException {
+        set("k1", "ABC", "DE");
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertNotNull(snapshot);
+        assertEquals("ABC", read(snapshot.getFile(0)));
+        assertEquals("DE", read(snapshot.getFile(1)));
+        assertEquals(3, snapshot.getLength(0));
+        assertEquals(2, snapshot.getLength(1));
+        assertEquals(5, cache.size());
+    }
+
+    @Test
+    public void journalReplayRestoresEntriesAndSize() throws IOException {
+        set("k1", "ABC", "DE");
+        set("k2", "F", "GHIJ");
+        cache.remove("k1");
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        DiskLruCache.Snapshot snapshot = cache.get("k2");
+        assertNotNull(snapshot);
+        assertEquals("F", read(snapshot.getFile(0)));
+        assertEquals("GHIJ", read(snapshot.getFile(1)));
+        assertEquals(5, cache.size());
+    }
+
+    @Test
+    public void journalReplayKeepsLruOrder() throws IOException {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        cache.get("a");  // READ，a变成最近使用的
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 2);
+        cache.flush();  // 同步淘汰到只剩一个条目
+        assertNull(cache.get("b"));
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void truncatedJournalDropsLastLine() throws IOException {
+        set("k1", "A", "B");
+        set("k2", "C", "D");
+        cache.close();
+
+        // 写到一半崩溃：最后一行没有换行符
+        Writer writer = new FileWriter(journalFile, true);
+        writer.write("CLEAN k3 1 1");
+        writer.close();
+        writeFile(new File(cacheDir, "k3.0"), "E");
+        writeFile(new File(cacheDir, "k3.1"), "F");
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+        assertNotNull(cache.get("k1"));
+        assertNotNull(cache.get("k2"));
+        assertNull(cache.get("k3"));
+        assertEquals(4, cache.size());
+        assertTrue(endsWithNewLine(journalFile));  // 用内存索引重写了journal
+    }
+
+    @Test
+    public void dirtyEntryIsDiscardedOnOpen() throws IOException {
+        set("k1", "A", "B");
+        DiskLruCache.Editor editor = cache.edit("k2");
+        writeFile(editor.getFile(0), "C");
+        writeFile(editor.getFile(1), "D");
+        // 不提交，模拟编辑时进程被杀：journal中只有DIRTY
+        File dirty = editor.getFile(0);
+        String journal = read(journalFile);
+        cache.close();  // close会abort编辑，这里恢复成崩溃时的样子
+        writeFile(journalFile, journal);
+        writeFile(dirty, "C");
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+        assertNull(cache.get("k2"));
+        assertFalse(dirty.exists());
+        assertNotNull(cache.get("k1"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void corruptHeaderClearsCache() throws IOException {
+        set("k1", "A", "B");
+        cache.close();
+        writeFile(journalFile, "not a journal\n");
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        assertFalse(new File(cacheDir, "k1.0").exists());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void appVersionChangeClearsCache() throws IOException {
+        set("k1", "A", "B");
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION + 1, 2, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+    }
+
+    @Test
+    public void backupJournalIsUsedWhenJournalIsMissing() throws IOException {
+        set("k1", "A", "B");
+        cache.close();
+        assertTrue(journalFile.renameTo(new File(cacheDir, DiskLruCache.JOURNAL_FILE_BACKUP)));
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+        assertNotNull(cache.get("k1"));
+        assertTrue(journalFile.exists());
+        assertFalse(new File(cacheDir, DiskLruCache.JOURNAL_FILE_BACKUP).exists());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxSize() throws IOException {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 10);
+        set("a", "aa", "aa");  // 4
+        set("b", "bb", "bb");  // 8
+        cache.get("a");
+        set("c", "cc", "cc");  // 12，超出后淘汰最久没用的b
+        cache.flush();
+        assertEquals(8, cache.size());
+        assertNull(cache.get("b"));
+        assertFalse(new File(cacheDir, "b.0").exists());
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void shrinkingMaxSizeEvicts() throws IOException {
+        set("a", "aa", "aa");
+        set("b", "bb", "bb");
+        cache.setMaxSize(4);
+        cache.flush();
+        assertEquals(4, cache.size());
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void editIsExclusive() throws IOException {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        assertNotNull(editor);
+        assertNull(cache.edit("k1"));
+        editor.abort();
+        assertNotNull(cache.edit("k1"));
+    }
+
+    @Test
+    public void abortedNewEntryIsNotReadable() throws IOException {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        writeFile(editor.getFile(0), "A");
+        writeFile(editor.getFile(1), "B");
+        editor.abort();
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void snapshotIsNotCurrentAfterRemoveOrRecommit() throws IOException {
+        set("k1", "A", "B");
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertTrue(snapshot.isCurrent());
+        set("k1", "C", "D");
+        assertFalse(snapshot.isCurrent());
+        assertNull(snapshot.edit());
+
+        DiskLruCache.Snapshot second = cache.get("k1");
+        assertTrue(second.isCurrent());
+        cache.remove("k1");
+        assertFalse(second.isCurrent());
+    }
+
+    @Test
+    public void snapshotFromReplayedJournalIsNotCurrentAfterRecommit() throws IOException {
+        set("k1", "A", "B");
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Long.MAX_VALUE);
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        set("k1", "C", "D");
+        assertFalse(snapshot.isCurrent());
+    }
+
+    private void set(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        writeFile(editor.getFile(0), value0);
+        writeFile(editor.getFile(1), value1);
+        editor.commit();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return new String(data, US_ASCII);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean endsWithNewLine(File file) throws IOException {
+        return read(file).endsWith("\n");
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.customview.utils;
+
+
+import android.graphics.Bitmap;
+
+import com.example.customview.stress.ImageServer;
+import com.example.customview.stress.SyntheticImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * 下载到文件时的HTTP行为，对着本机的ImageServer验证：条件请求和304、ETag/Last-Modified的保存和回传、
+ * gzip解压、keep-alive复用连接（包括并发下载时）
+ *
+ * date: 2018/9/21
+ * user: jackxu
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class DownloadImgUtilsTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SyntheticImages mImages;
+    private ImageServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mImages = new SyntheticImages(8, 1, 0);
+        mServer = new ImageServer(mImages, 0);  // max-age=0，每次都要重新验证
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void etagIsSentBackAndNotModifiedSkipsDownload() throws IOException {
+        mServer.start();
+        File file = mFolder.newFile();
+        CacheHeaders headers = DownloadImgUtils.fetchImageByUrl(mServer.url(0), file, null, null);
+        assertNotNull(headers);
+        assertFalse(headers.isNotModified());
+        assertEquals("\"img-0\"", headers.etag);
+        assertArrayEquals(mImages.get(0).data, readFile(file));
+
+        File unused = new File(mFolder.getRoot(), "unused");
+        CacheHeaders revalidated = DownloadImgUtils.fetchImageByUrl(mServer.url(0), unused, headers, null);
+        assertNotNull(revalidated);
+        assertTrue(revalidated.isNotModified());
+        assertEquals(headers.etag, revalidated.etag);
+        assertFalse("304 must not write the file", unused.exists());
+        assertEquals(1, mServer.getNotModifiedCount());
+        assertEquals(mImages.get(0).data.length, mServer.getBytesServed());
+    }
+
+    @Test
+    public void lastModifiedIsSentBackWithoutEtag() throws IOException {
+        mServer.setEtagEnabled(false);
+        mServer.start();
+        CacheHeaders headers = DownloadImgUtils.fetchImageByUrl(mServer.url(1), mFolder.newFile(), null, null);
+        assertNotNull(headers);
+        assertNull(headers.etag);
+        assertEquals(mServer.getLastModified(), headers.lastModified);
+        assertTrue(headers.hasValidators());
+
+        CacheHeaders revalidated = DownloadImgUtils.fetchImageByUrl(mServer.url(1), mFolder.newFile(), headers,
+                null);
+        assertNotNull(revalidated);
+        assertTrue(revalidated.isNotModified());
+        assertEquals(headers.lastModified, revalidated.lastModified);
+        assertEquals(1, mServer.getNotModifiedCount());
+    }
+
+    @Test
+    public void changedEtagDownloadsAgain() throws IOException {
+        mServer.start();
+        File file = mFolder.newFile();
+        CacheHeaders stale = new CacheHeaders("\"img-old\"", 0, 0);
+        CacheHeaders headers = DownloadImgUtils.fetchImageByUrl(mServer.url(2), file, stale, null);
+        assertNotNull(headers);
+        assertFalse(headers.isNotModified());
+        assertEquals("\"img-2\"", headers.etag);
+        assertArrayEquals(mImages.get(2).data, readFile(file));
+        assertEquals(0, mServer.getNotModifiedCount());
+    }
+
+    @Test
+    public void gzipResponseIsDecoded() throws IOException {
+        mServer.setGzipEnabled(true);
+        mServer.start();
+        File file = mFolder.newFile();
+        assertNotNull(DownloadImgUtils.fetchImageByUrl(mServer.url(3), file, null, null));
+        assertEquals(1, mServer.getGzipResponseCount());
+        assertArrayEquals(mImages.get(3).data, readFile(file));
+    }
+
+    @Test
+    public void connectionIsReused() throws IOException {
+        mServer.setGzipEnabled(true);
+        mServer.start();
+        CacheHeaders[] headers = new CacheHeaders[4];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = DownloadImgUtils.fetchImageByUrl(mServer.url(i), mFolder.newFile(), null, null);
+            assertNotNull(headers[i]);
+        }
+        for (int i = 0; i < headers.length; i++) {  // 304的响应也要让连接回到连接池
+            assertTrue(DownloadImgUtils.fetchImageByUrl(mServer.url(i), mFolder.newFile(), headers[i], null)
+                    .isNotModified());
+        }
+        assertEquals(2 * headers.length, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void connectionsAreReusedUnderConcurrency() throws Exception {
+        for (int i = 0; i < mImages.size(); i++) {
+            mImages.appendTrailer(i, 128 * 1024);  // 解码器不读的部分，比HttpURLConnection关闭时自己清理的多
+        }
+        mServer.start();
+        final int threads = 4;  // 小于HttpURLConnection每个host保留的空闲连接数（5）
+        final int rounds = 6;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int r = 0; r < rounds; r++) {
+                            String url = mServer.url((offset + r) % mImages.size());
+                            // 下载到文件、304、边读边解码三种响应都要读到末尾，连接才能回到连接池
+                            CacheHeaders headers = DownloadImgUtils.fetchImageByUrl(url, mFolder.newFile(),
+                                    null, null);
+                            assertNotNull(headers);
+                            assertTrue(DownloadImgUtils.fetchImageByUrl(url, mFolder.newFile(), headers, null)
+                                    .isNotModified());
+                            assertNotNull(DownloadImgUtils.downloadImageByUrl(url, 64, 64, null));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(3 * threads * rounds, mServer.getRequestCount());
+        assertTrue("connections=" + mServer.getConnectionCount(), mServer.getConnectionCount() <= threads);
+    }
+
+    @Test
+    public void headerLargerThanMarkLimitIsDecodedFromSecondRequest() throws IOException {
+        int id = firstJpeg();
+        mImages.padJpegHeader(id, 2 * 1024 * 1024);  // 超过HEADER_MARK_LIMIT，读完头部后reset不回去
+        mServer.start();
+        Bitmap bitmap = DownloadImgUtils.downloadImageByUrl(mServer.url(id), 4096, 4096, null);
+        assertNotNull(bitmap);
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(mImages.get(id).data));
+        assertEquals(expected.getWidth(), bitmap.getWidth());
+        assertEquals(expected.getHeight(), bitmap.getHeight());
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    private int firstJpeg() {
+        for (int i = 0; i < mImages.size(); i++) {
+            if ("image/jpeg".equals(mImages.get(i).contentType)) {
+                return i;
+            }
+        }
+        throw new AssertionError("no jpeg in the synthetic images");
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.customview.utils;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * PackedBlobStore的读写、重新映射、后台压缩和写到一半的记录的恢复，纯JVM测试
+ *
+ * date: 2018/9/20
+ * user: jackxu
+ */
+public class PackedBlobStoreTest {
+
+    private static final int MAX_ENTRY_SIZE = 64 * 1024;
+    private static final long COMPACTION_TIMEOUT_MILLIS = 10 * 1000;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File storeDir;
+    private PackedBlobStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        storeDir = tempDir.newFolder("packed");
+        store = PackedBlobStore.open(storeDir, PackedBlobStore.SEGMENT_SIZE, MAX_ENTRY_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void putAndGetKeepsDataAndHeaders() throws IOException {
+        byte[] data = data(1000, 1);
+        assertTrue(put("k1", data, new CacheHeaders("\"v1\"", 1234L, 5678L)));
+        PackedBlobStore.Blob blob = store.get("k1");
+        assertNotNull(blob);
+        assertArrayEquals(data, bytes(blob.data));
+        assertEquals("\"v1\"", blob.headers.etag);
+        assertEquals(1234L, blob.headers.lastModified);
+        assertEquals(5678L, blob.headers.expires);
+        assertNull(store.get("missing"));
+    }
+
+    @Test
+    public void entryLargerThanMaxEntrySizeIsRejected() throws IOException {
+        assertFalse(put("big", data(MAX_ENTRY_SIZE + 1, 1), null));
+        assertNull(store.get("big"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void appendedRecordsAreReadableAfterEarlierGet() throws IOException {
+        byte[] first = data(1000, 1);
+        byte[] second = data(3000, 2);
+        put("k1", first, null);
+        ByteBuffer early = store.get("k1").data;  // 这时只映射了第一条记录
+        put("k2", second, null);
+        assertArrayEquals(second, bytes(store.get("k2").data));
+        assertArrayEquals(first, bytes(early));
+        // 映射不会把文件临时变长，段文件的长度一直等于写入的字节数
+        assertEquals(store.fileSize(), segmentFile(1).length());
+    }
+
+    @Test
+    public void reopenRestoresEntriesAndTombstones() throws IOException {
+        put("k1", data(1000, 1), null);
+        put("k2", data(2000, 2), null);
+        put("k1", data(500, 3), null);
+        store.remove("k2");
+        long size = store.size();
+        long fileSize = store.fileSize();
+        store.close();
+
+        store = PackedBlobStore.open(storeDir, PackedBlobStore.SEGMENT_SIZE, MAX_ENTRY_SIZE);
+        assertArrayEquals(data(500, 3), bytes(store.get("k1").data));
+        assertNull(store.get("k2"));
+        assertEquals(size, store.size());
+        assertEquals(fileSize, store.fileSize());
+    }
+
+    @Test
+    public void tornRecordIsTruncatedOnReopen() throws IOException {
+        put("k1", data(1000, 1), null);
+        long intact = store.fileSize();
+        put("k2", data(2000, 2), null);
+        store.close();
+
+        // 模拟写k2时进程被杀：记录头完整，数据只写了一部分
+        truncate(segmentFile(1), segmentFile(1).length() - 500);
+        store = PackedBlobStore.open(storeDir, PackedBlobStore.SEGMENT_SIZE, MAX_ENTRY_SIZE);
+        assertArrayEquals(data(1000, 1), bytes(store.get("k1").data));
+        assertNull(store.get("k2"));
+        assertEquals(intact, store.size());
+        assertEquals(intact, segmentFile(1).length());
+
+        // 截断之后接着追加，再次打开时新的记录也在
+        put("k3", data(700, 3), null);
+        store.close();
+        store = PackedBlobStore.open(storeDir, PackedBlobStore.SEGMENT_SIZE, MAX_ENTRY_SIZE);
+        assertArrayEquals(data(1000, 1), bytes(store.get("k1").data));
+        assertArrayEquals(data(700, 3), bytes(store.get("k3").data));
+    }
+
+    @Test
+    public void tornHeaderIsTruncatedOnReopen() throws IOException {
+        put("k1", data(1000, 1), null);
+        long intact = store.fileSize();
+        store.close();
+
+        // 只写了记录头的前几个字节：magic和key的长度
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(1), "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0x50, 0x4b, 0x42, 0x31, 0, 2, 'k'});
+        } finally {
+            raf.close();
+        }
+        store = PackedBlobStore.open(storeDir, PackedBlobStore.SEGMENT_SIZE, MAX_ENTRY_SIZE);
+        assertArrayEquals(data(1000, 1), bytes(store.get("k1").data));
+        assertEquals(intact, store.fileSize());
+        assertEquals(intact, segmentFile(1).length());
+    }
+
+    @Test
+    public void compactionReclaimsDeadRecords() throws Exception {
+        int keys = 20;
+        int entrySize = 50 * 1024;
+        ByteBuffer early = null;
+        // 反复覆盖同样的key，写满几个段，碎片超过一半后在后台压缩
+        for (int round = 0; round < 10; round++) {
+            for (int k = 0; k < keys; k++) {
+                put("k" + k, data(entrySize, round * keys + k), null);
+            }
+            if (round == 0) {
+                early = store.get("k0").data;
+            }
+        }
+        awaitCompaction();
+
+        assertFalse("oldest segment should be compacted away", segmentFile(1).exists());
+        assertEquals(store.fileSize(), totalSegmentBytes());
+        // 段文件最多占用max(2 * size, SEGMENT_SIZE)
+        assertTrue(store.fileSize() <= Math.max(2 * store.size(), PackedBlobStore.SEGMENT_SIZE));
+        for (int k = 0; k < keys; k++) {
+            assertArrayEquals(data(entrySize, 9 * keys + k), bytes(store.get("k" + k).data));
+        }
+        // 段文件被删除后，已经交出去的ByteBuffer仍然可以读取
+        assertArrayEquals(data(entrySize, 0), bytes(early));
+
+        long size = store.size();
+        store.close();
+        store = PackedBlobStore.open(storeDir, PackedBlobStore.SEGMENT_SIZE, MAX_ENTRY_SIZE);
+        assertEquals(size, store.size());
+        for (int k = 0; k < keys; k++) {
+            assertArrayEquals(data(entrySize, 9 * keys + k), bytes(store.get("k" + k).data));
+        }
+    }
+
+    @Test
+    public void trimToSizeEvictsLeastRecentlyUsed() throws IOException {
+        store.setMaxSize(3 * 1100);
+        put("k1", data(1000, 1), null);
+        put("k2", data(1000, 2), null);
+        put("k3", data(1000, 3), null);
+        store.get("k1");
+        put("k4", data(1000, 4), null);
+        assertNotNull(store.get("k1"));
+        assertNull(store.get("k2"));
+        assertNotNull(store.get("k3"));
+        assertNotNull(store.get("k4"));
+    }
+
+    private void awaitCompaction() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + COMPACTION_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            long fileSize = store.fileSize();
+            if (fileSize <= PackedBlobStore.SEGMENT_SIZE || fileSize - store.size() <= fileSize / 2) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("compaction did not finish: size=" + store.size()
+                + " fileSize=" + store.fileSize());
+    }
+
+    private boolean put(String key, byte[] data, CacheHeaders headers) throws IOException {
+        File file = tempDir.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return store.put(key, file, headers);
+    }
+
+    private File segmentFile(int id) {
+        return new File(storeDir, id + PackedBlobStore.SEGMENT_SUFFIX);
+    }
+
+    private long totalSegmentBytes() {
+        long total = 0;
+        File[] files = storeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) (seed >> 8);
+        return data;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.customview.utils;
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * TaskScheduler的出队顺序、队列满时的丢弃和每个host的并发上限，纯JVM测试。
+ * 先用一个阻塞的任务占住工作线程，排好队之后再放开，执行顺序就是出队顺序
+ *
+ * date: 2018/9/5
+ * user: jackxu
+ */
+public class TaskSchedulerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private TaskScheduler scheduler;
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void higherPriorityRunsFirst() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        CountDownLatch release = block(scheduler);
+        scheduler.submit(new RecordingTask("low", TaskScheduler.PRIORITY_LOW, MyImageLoader.QueueType.FIFO));
+        scheduler.submit(new RecordingTask("normal", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO));
+        scheduler.submit(new RecordingTask("high", TaskScheduler.PRIORITY_HIGH, MyImageLoader.QueueType.FIFO));
+        release.countDown();
+        awaitExecuted(3);
+        assertEquals(Arrays.asList("high", "normal", "low"), executed);
+    }
+
+    @Test
+    public void fifoRunsInSubmitOrder() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        CountDownLatch release = block(scheduler);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(new RecordingTask("t" + i, TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO));
+        }
+        release.countDown();
+        awaitExecuted(3);
+        assertEquals(Arrays.asList("t0", "t1", "t2"), executed);
+    }
+
+    @Test
+    public void lifoRunsNewestFirst() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        CountDownLatch release = block(scheduler);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(new RecordingTask("t" + i, TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.LIFO));
+        }
+        release.countDown();
+        awaitExecuted(3);
+        assertEquals(Arrays.asList("t2", "t1", "t0"), executed);
+    }
+
+    @Test
+    public void setPriorityRequeuesWaitingTask() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        CountDownLatch release = block(scheduler);
+        RecordingTask first = new RecordingTask("first", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO);
+        RecordingTask second = new RecordingTask("second", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO);
+        scheduler.submit(first);
+        scheduler.submit(second);
+        scheduler.setPriority(first, TaskScheduler.PRIORITY_LOW);  // 滚出屏幕
+        release.countDown();
+        awaitExecuted(2);
+        assertEquals(Arrays.asList("second", "first"), executed);
+    }
+
+    @Test
+    public void fullQueueDropsStalestLowestPriorityTask() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 2);
+        CountDownLatch release = block(scheduler);
+        RecordingTask oldLow = new RecordingTask("oldLow", TaskScheduler.PRIORITY_LOW, MyImageLoader.QueueType.FIFO);
+        RecordingTask newLow = new RecordingTask("newLow", TaskScheduler.PRIORITY_LOW, MyImageLoader.QueueType.FIFO);
+        RecordingTask high = new RecordingTask("high", TaskScheduler.PRIORITY_HIGH, MyImageLoader.QueueType.FIFO);
+        scheduler.submit(oldLow);
+        scheduler.submit(newLow);
+        scheduler.submit(high);
+        assertEquals(2, scheduler.getQueueSize());
+        assertTrue(oldLow.dropped);
+        assertFalse(newLow.dropped);
+        assertFalse(high.dropped);
+        release.countDown();
+        awaitExecuted(2);
+        assertEquals(Arrays.asList("high", "newLow"), executed);
+    }
+
+    @Test
+    public void nonDroppableTasksAreKept() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 1);
+        CountDownLatch release = block(scheduler);
+        RecordingTask kept = new RecordingTask("kept", TaskScheduler.PRIORITY_LOW, MyImageLoader.QueueType.FIFO);
+        kept.droppable = false;
+        RecordingTask fresh = new RecordingTask("fresh", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO);
+        scheduler.submit(kept);
+        scheduler.submit(fresh);
+        assertFalse(kept.dropped);
+        assertTrue(fresh.dropped);
+
+        RecordingTask alsoKept = new RecordingTask("alsoKept", TaskScheduler.PRIORITY_LOW,
+                MyImageLoader.QueueType.FIFO);
+        alsoKept.droppable = false;
+        scheduler.submit(alsoKept);  // 只剩不能丢弃的任务时暂时超出上限
+        assertEquals(2, scheduler.getQueueSize());
+        release.countDown();
+        awaitExecuted(2);
+        assertEquals(Arrays.asList("kept", "alsoKept"), executed);
+    }
+
+    @Test
+    public void removeTakesTaskOutOfQueue() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        CountDownLatch release = block(scheduler);
+        RecordingTask removed = new RecordingTask("removed", TaskScheduler.PRIORITY_NORMAL,
+                MyImageLoader.QueueType.FIFO);
+        scheduler.submit(removed);
+        scheduler.submit(new RecordingTask("kept", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO));
+        assertTrue(scheduler.remove(removed));
+        assertFalse(scheduler.remove(removed));
+        release.countDown();
+        awaitExecuted(1);
+        assertEquals(Collections.singletonList("kept"), executed);
+    }
+
+    @Test
+    public void perHostLimitLetsOtherHostsRun() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 3, 100);
+        scheduler.setMaxTasksPerHost(1);
+        final AtomicInteger runningOnA = new AtomicInteger();
+        final AtomicInteger maxRunningOnA = new AtomicInteger();
+        final CountDownLatch firstOnAStarted = new CountDownLatch(1);
+        final CountDownLatch releaseA = new CountDownLatch(1);
+        final CountDownLatch bDone = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(new HostTask("a") {
+                @Override
+                public void run() {
+                    int running = runningOnA.incrementAndGet();
+                    maxRunningOnA.set(Math.max(maxRunningOnA.get(), running));
+                    firstOnAStarted.countDown();
+                    await(releaseA);
+                    runningOnA.decrementAndGet();
+                    executed.add("a");
+                }
+            });
+        }
+        assertTrue(firstOnAStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        scheduler.submit(new HostTask("b") {
+            @Override
+            public void run() {
+                executed.add("b");
+                bDone.countDown();
+            }
+        });
+        // a的名额被占满，空闲的工作线程跳过排在前面的a，先执行b
+        assertTrue(bDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("b"), executed);
+        assertEquals(2, scheduler.getQueueSize());
+        releaseA.countDown();
+        awaitExecuted(4);
+        assertEquals(1, maxRunningOnA.get());
+    }
+
+    @Test
+    public void workerSurvivesThrowingTask() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        scheduler.submit(new TaskScheduler.Task(TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO) {
+            @Override
+            public void run() {
+                throw new OutOfMemoryError("test");
+            }
+        });
+        scheduler.submit(new RecordingTask("after", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO));
+        awaitExecuted(1);
+        assertEquals(Collections.singletonList("after"), executed);
+    }
+
+    @Test
+    public void shutdownDropsQueuedTasks() throws InterruptedException {
+        scheduler = new TaskScheduler("test", 1, 100);
+        CountDownLatch release = block(scheduler);
+        RecordingTask queued = new RecordingTask("queued", TaskScheduler.PRIORITY_NORMAL,
+                MyImageLoader.QueueType.FIFO);
+        scheduler.submit(queued);
+        scheduler.shutdown();
+        assertTrue(queued.dropped);
+        assertEquals(0, scheduler.getQueueSize());
+        release.countDown();
+
+        RecordingTask late = new RecordingTask("late", TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO);
+        scheduler.submit(late);
+        assertTrue(late.dropped);
+    }
+
+    /**
+     * 提交一个占住工作线程的任务，等它开始执行后返回，countDown之后放开
+     */
+    private static CountDownLatch block(TaskScheduler scheduler) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(new TaskScheduler.Task(TaskScheduler.PRIORITY_HIGH, MyImageLoader.QueueType.FIFO) {
+            @Override
+            public void run() {
+                started.countDown();
+                await(release);
+            }
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private void awaitExecuted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (executed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, executed.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class RecordingTask extends TaskScheduler.Task {
+        final String name;
+        boolean droppable = true;
+        volatile boolean dropped;
+
+        RecordingTask(String name, int priority, MyImageLoader.QueueType queueType) {
+            super(priority, queueType);
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            executed.add(name);
+        }
+
+        @Override
+        protected boolean isDroppable() {
+            return droppable;
+        }
+
+        @Override
+        protected void onDropped() {
+            dropped = true;
+        }
+    }
+
+    private abstract static class HostTask extends TaskScheduler.Task {
+        private final String host;
+
+        HostTask(String host) {
+            super(TaskScheduler.PRIORITY_NORMAL, MyImageLoader.QueueType.FIFO);
+            this.host = host;
+        }
+
+        @Override
+        protected String getHost() {
+            return host;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.customview.view;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.example.customview.R;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * shader模式下onDraw不分配对象：用HotSpot的线程分配计数统计多次绘制中分配的字节数。
+ * Robolectric的Canvas会记录每次绘制的描述，本身就要分配对象，所以用一个只计数的Canvas
+ *
+ * date: 2018/9/21
+ * user: jackxu
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class CustomImageViewDrawTest {
+
+    private static final int WARM_UP_DRAWS = 2000;
+    private static final int DRAWS = 10000;
+
+    @Test
+    public void circleDrawDoesNotAllocate() {
+        CustomImageView view = createShaderView("circle");
+        CountingCanvas canvas = new CountingCanvas();
+        long allocated = measureDraws(view, canvas);
+        assertEquals(2 * (WARM_UP_DRAWS + DRAWS), canvas.ovals);  // 图片和描边，确认走的是shader绘制
+        assertTrue("onDraw allocated " + allocated + " bytes in " + DRAWS + " draws", allocated < DRAWS);
+    }
+
+    @Test
+    public void roundDrawDoesNotAllocate() {
+        CustomImageView view = createShaderView("round");
+        CountingCanvas canvas = new CountingCanvas();
+        long allocated = measureDraws(view, canvas);
+        assertEquals(2 * (WARM_UP_DRAWS + DRAWS), canvas.roundRects);
+        assertTrue("onDraw allocated " + allocated + " bytes in " + DRAWS + " draws", allocated < DRAWS);
+    }
+
+    private static CustomImageView createShaderView(String type) {
+        AttributeSet attrs = Robolectric.buildAttributeSet()
+                .addAttribute(R.attr.type, type)
+                .addAttribute(R.attr.renderMode, "shader")
+                .addAttribute(R.attr.borderWidth, "4px")
+                .addAttribute(R.attr.borderRadius, "12px")
+                .build();
+        CustomImageView view = new CustomImageView(RuntimeEnvironment.application, attrs);
+        view.setImageBitmap(Bitmap.createBitmap(120, 80, Bitmap.Config.ARGB_8888));
+        view.measure(View.MeasureSpec.makeMeasureSpec(200, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(160, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, 200, 160);
+        return view;
+    }
+
+    /**
+     * 先预热（类加载、JIT），再统计DRAWS次onDraw中当前线程分配的字节数
+     */
+    private static long measureDraws(CustomImageView view, Canvas canvas) {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP_DRAWS; i++) {
+            view.onDraw(canvas);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < DRAWS; i++) {
+            view.onDraw(canvas);
+        }
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    /**
+     * 只记录绘制次数，不调用Robolectric的实现
+     */
+    private static class CountingCanvas extends Canvas {
+        int ovals;
+        int roundRects;
+
+        @Override
+        public void drawOval(RectF oval, Paint paint) {
+            ovals++;
+        }
+
+        @Override
+        public void drawRoundRect(RectF rect, float rx, float ry, Paint paint) {
+            roundRects++;
+        }
+    }
+}
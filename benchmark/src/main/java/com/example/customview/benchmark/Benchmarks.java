@@ -0,0 +1,26 @@
+package com.example.customview.benchmark;
+
+
+/**
+ * 各个benchmark共用的测试数据
+ *
+ * date: 2018/9/18
+ * user: jackxu
+ */
+class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * 长度和列表页中真实的图片url差不多
+     */
+    static String[] newUrls(int count) {
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "https://img.example.com/poi/2018/09/" + (i * 7919) + "/cover_" + i
+                    + ".jpg?w=720&h=480&q=80";
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.customview.benchmark;
+
+
+import com.example.customview.utils.MyImageLoader;
+import com.example.customview.utils.RequestKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 缓存的key：原来每次查硬盘缓存都要对url做一次md5再转成16进制字符串，
+ * 现在每个请求构建一次RequestKey，hash和硬盘缓存的文件名都从它得到
+ *
+ * date: 2018/9/18
+ * user: jackxu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheKeyBenchmark {
+
+    private static final int PATH_COUNT = 1024;  // 2的幂，方便取下标
+
+    private String[] mPaths;
+    private byte[][] mDigests;
+    private int mIndex;
+
+    @Setup
+    public void setup() throws Exception {
+        mPaths = Benchmarks.newUrls(PATH_COUNT);
+        mDigests = new byte[PATH_COUNT][];
+        MessageDigest md = MessageDigest.getInstance("md5");
+        for (int i = 0; i < PATH_COUNT; i++) {
+            mDigests[i] = md.digest(mPaths[i].getBytes());
+        }
+    }
+
+    private int next() {
+        mIndex = (mIndex + 1) & (PATH_COUNT - 1);
+        return mIndex;
+    }
+
+    @Benchmark
+    public String md5() {
+        return MyImageLoader.md5(mPaths[next()]);
+    }
+
+    @Benchmark
+    public String bytes2hex02() {
+        return MyImageLoader.bytes2hex02(mDigests[next()]);
+    }
+
+    @Benchmark
+    public RequestKey requestKey() {
+        return new RequestKey(mPaths[next()], 720, 480, "");
+    }
+
+    @Benchmark
+    public String requestKeyDiskKey() {
+        return new RequestKey(mPaths[next()], 720, 480, "").getDiskKey();
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.customview.benchmark;
+
+
+import android.support.v4.util.LruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 内存缓存在多个线程同时读写时的开销。
+ * MyImageLoader用的android.util.LruCache在JVM上只有stub，这里用实现相同的support库版本，
+ * 按字节数计算大小，和图片缓存的用法一致
+ *
+ * date: 2018/9/18
+ * user: jackxu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LruCacheBenchmark {
+
+    private static final int CACHE_ENTRIES = 256;
+    private static final int ENTRY_SIZE = 64 * 1024;  // 缓存只按这个大小计算，不真正分配
+
+    // 小于缓存容量时几乎都命中，大于时大部分未命中、不断淘汰
+    @Param({"128", "1024"})
+    public int keyCount;
+
+    private String[] mKeys;
+    private LruCache<String, Integer> mCache;
+
+    @Setup
+    public void setup() {
+        mKeys = Benchmarks.newUrls(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            mKeys[i] = mKeys[i] + "_720x480";  // 和内存缓存的key格式一致
+        }
+        mCache = new LruCache<String, Integer>(CACHE_ENTRIES * ENTRY_SIZE) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        for (String key : mKeys) {
+            mCache.put(key, ENTRY_SIZE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        // 每个线程从不同的位置开始，避免所有线程总是访问同一个key
+        private int mIndex = ThreadLocalRandom.current().nextInt(1 << 16);
+
+        int next(int count) {
+            mIndex = (mIndex + 1) % count;
+            return mIndex;
+        }
+    }
+
+    /**
+     * 和加载时一样：先查缓存，未命中时放入
+     */
+    @Benchmark
+    public Integer getOrPut(Cursor cursor) {
+        String key = mKeys[cursor.next(keyCount)];
+        Integer value = mCache.get(key);
+        if (value == null) {
+            value = ENTRY_SIZE;
+            mCache.put(key, value);
+        }
+        return value;
+    }
+
+    @Benchmark
+    public Integer get(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next(keyCount)]);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.customview.benchmark;
+
+
+import com.example.customview.utils.ImageSizeUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 每次解码之前根据原图和控件的大小计算inSampleSize
+ *
+ * date: 2018/9/18
+ * user: jackxu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleSizeBenchmark {
+
+    private static final int SIZE_COUNT = 1024;  // 2的幂，方便取下标
+
+    // 原图从缩略图到超大图，控件从列表小图到全屏
+    private final int[] mWidths = new int[SIZE_COUNT];
+    private final int[] mHeights = new int[SIZE_COUNT];
+    private final int[] mReqWidths = new int[SIZE_COUNT];
+    private final int[] mReqHeights = new int[SIZE_COUNT];
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE_COUNT; i++) {
+            mWidths[i] = 100 + random.nextInt(8000);
+            mHeights[i] = 100 + random.nextInt(8000);
+            mReqWidths[i] = 48 + random.nextInt(1080);
+            mReqHeights[i] = 48 + random.nextInt(1920);
+        }
+    }
+
+    @Benchmark
+    public int caculateInSampleSize() {
+        int i = mIndex = (mIndex + 1) & (SIZE_COUNT - 1);
+        return ImageSizeUtil.caculateInSampleSize(mWidths[i], mHeights[i], mReqWidths[i], mReqHeights[i]);
+    }
+}
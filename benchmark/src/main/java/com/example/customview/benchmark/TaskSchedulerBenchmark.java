@@ -0,0 +1,101 @@
+package com.example.customview.benchmark;
+
+
+import com.example.customview.utils.MyImageLoader;
+import com.example.customview.utils.TaskScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 任务调度的开销：一批空任务从提交、排队、被工作线程取出到执行完成的平均时间，
+ * 测的是队列和锁本身，不包括真正的IO和解码
+ *
+ * date: 2018/9/18
+ * user: jackxu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaskSchedulerBenchmark {
+
+    private static final int BATCH_SIZE = 64;
+    private static final int HOST_COUNT = 4;
+
+    @Param({"1", "4"})
+    public int threadCount;
+
+    @Param({"FIFO", "LIFO"})
+    public MyImageLoader.QueueType queueType;
+
+    @Param({"0", "2"})
+    public int maxTasksPerHost;  // 0表示不限制
+
+    private TaskScheduler mScheduler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mScheduler = new TaskScheduler("benchmark", threadCount, BATCH_SIZE);
+        mScheduler.setMaxTasksPerHost(maxTasksPerHost);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void submitAndRun() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mScheduler.submit(new CountDownTask(i % 3, queueType, "host" + (i % HOST_COUNT), latch));
+        }
+        latch.await();
+    }
+
+    private static class CountDownTask extends TaskScheduler.Task {
+        private final String mHost;
+        private final CountDownLatch mLatch;
+
+        CountDownTask(int priority, MyImageLoader.QueueType queueType, String host, CountDownLatch latch) {
+            super(priority, queueType);
+            mHost = host;
+            mLatch = latch;
+        }
+
+        @Override
+        protected String getHost() {
+            return mHost;
+        }
+
+        @Override
+        public void run() {
+            mLatch.countDown();
+        }
+
+        @Override
+        protected void onDropped() {
+            mLatch.countDown();
+        }
+    }
+}
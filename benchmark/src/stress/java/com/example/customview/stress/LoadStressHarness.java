@@ -0,0 +1,397 @@
+package com.example.customview.stress;
+
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.view.ViewGroup;
+
+import com.example.customview.utils.CacheStats;
+import com.example.customview.utils.MyImageLoader;
+import com.example.customview.utils.RequestMetrics;
+import com.example.customview.view.CustomImageView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 端到端的压测：不需要设备和外网，在Robolectric中用CustomImageView驱动几千次loadImage，
+ * 图片来自本机的ImageServer。模拟列表滑动：一屏的控件依次绑定新的url，每屏停留几帧后翻到下一屏，
+ * 来不及完成的请求被取消，和真实的快速滑动一样。
+ *
+ * 同样的滑动跑两遍：第一遍（cold）从空的缓存开始；第二遍（revisit）模拟离开页面后再回来，
+ * 内存中的bitmap和编码缓存被清空，硬盘缓存的条目已经超过max-age，要用条件请求重新验证（304）。
+ *
+ * 每一遍报告吞吐量、从提交到显示的p50/p99、堆内存峰值、下载的字节数、解码次数和各级缓存的命中率，
+ * 以及每次loadImage的去向：显示、取消、和正在加载的任务合并。
+ * 调度和缓存的改动可以用前后两次报告的数字比较。
+ * 注意Robolectric的Bitmap没有真正的像素，解码耗时和bitmap占用的内存不代表设备上的情况；
+ * 这里主要衡量调度、缓存、网络和主线程分发。
+ *
+ * 运行：./gradlew :benchmark:stress
+ * 调整参数：./gradlew :benchmark:stress -Pstress.requests=10000 -Pstress.latency=20 -Pstress.maxAge=3600
+ * 报告写到build/reports/stress/report.txt，默认参数的一次结果保存在benchmark/stress-baseline.txt
+ *
+ * date: 2018/9/20
+ * user: jackxu
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = "../app/src/main/AndroidManifest.xml")
+public class LoadStressHarness {
+
+    private static final long FRAME_MILLIS = 16;
+    private static final long IDLE_MILLIS = 1000;  // 这么长时间没有新的结果，并且服务器没有请求在处理，认为已经跑完
+    private static final long DRAIN_TIMEOUT_MILLIS = 120 * 1000;
+    // trimMemory之后加载器在这么长时间内不恢复内存预算（MyImageLoader.MEMORY_RECOVERY_DELAY），让模拟的时钟走过去
+    private static final long MEMORY_RECOVERY_MILLIS = 10 * 1000;
+    private static final int MAX_REVISIT_WAIT_SECONDS = 60;
+
+    private final int mRequests = intProperty("stress.requests", 5000);
+    private final int mImageCount = intProperty("stress.images", 400);
+    private final int mViewCount = intProperty("stress.views", 12);  // 一屏的控件数
+    private final int mFramesPerPage = intProperty("stress.framesPerPage", 2);  // 每屏停留的帧数，越小滑得越快
+    private final int mLatencyMillis = intProperty("stress.latency", 40);
+    // 第二遍之前等待max-age过去；超过MAX_REVISIT_WAIT_SECONDS时不等，第二遍测的是新鲜的硬盘缓存命中
+    private final int mMaxAgeSeconds = intProperty("stress.maxAge", 5);
+    private final int mEncodedCacheSize = intProperty("stress.encodedCache", 4 * 1024 * 1024);  // 0表示不开启
+    private final long mSeed = intProperty("stress.seed", 1);
+
+    @Test
+    public void run() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        // 工作线程post过来的分发留在主线程的队列中，由下面的pumpFrame按帧执行
+        ShadowLooper.pauseMainLooper();
+
+        SyntheticImages images = new SyntheticImages(mImageCount, mSeed, mLatencyMillis);
+        ImageServer server = new ImageServer(images, mMaxAgeSeconds);
+        server.start();
+
+        MyImageLoader loader = new MyImageLoader.Builder().encodedCacheSize(mEncodedCacheSize).build();
+        // 每次都从空的硬盘缓存开始，结果可以重复
+        deleteRecursively(loader.getDiskCacheDir(context, "images"));
+        deleteRecursively(loader.getDiskCacheDir(context, "images_packed"));
+
+        CustomImageView[] views = new CustomImageView[mViewCount];
+        for (int i = 0; i < mViewCount; i++) {
+            views[i] = new CustomImageView(context);
+            // 一半是头像大小，一半是卡片大小
+            views[i].setLayoutParams(i % 2 == 0 ? new ViewGroup.LayoutParams(160, 160)
+                    : new ViewGroup.LayoutParams(720, 400));
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("requests=").append(mRequests).append(" images=").append(mImageCount)
+                .append(" views=").append(mViewCount).append(" framesPerPage=").append(mFramesPerPage)
+                .append(" latency=").append(mLatencyMillis).append("ms maxAge=").append(mMaxAgeSeconds)
+                .append("s encodedCache=").append(mEncodedCacheSize / 1024).append("K seed=").append(mSeed)
+                .append('\n');
+        report.append(runPhase("cold", loader, server, images, views));
+
+        // 离开页面再回来：内存中的bitmap和编码缓存都被清空，硬盘缓存还在
+        loader.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Robolectric.getForegroundThreadScheduler().advanceBy(MEMORY_RECOVERY_MILLIS, TimeUnit.MILLISECONDS);
+        if (mMaxAgeSeconds <= MAX_REVISIT_WAIT_SECONDS) {
+            Thread.sleep((mMaxAgeSeconds + 1) * 1000L);  // 硬盘缓存的条目都过期，需要重新验证
+        }
+        report.append(runPhase("revisit", loader, server, images, views));
+
+        System.out.println(report);
+        writeReport(report.toString());
+        server.close();
+    }
+
+    /**
+     * 用同样的seed滑动一遍，返回这一遍的报告；服务器和缓存的计数都只算这一遍的增量
+     */
+    private String runPhase(String name, MyImageLoader loader, ImageServer server, SyntheticImages images,
+            CustomImageView[] views) throws InterruptedException {
+        MetricsRecorder recorder = new MetricsRecorder();
+        loader.setMetricsListener(recorder);
+        ServerCounts serverBefore = new ServerCounts(server);
+        int[][] cacheBefore = snapshot(loader.getCacheStats());
+
+        HeapSampler heapSampler = new HeapSampler();
+        heapSampler.start();
+        Random random = new Random(mSeed);
+        long start = System.nanoTime();
+        for (int i = 0; i < mRequests; i += mViewCount) {
+            for (int v = 0; v < mViewCount && i + v < mRequests; v++) {
+                loader.loadImage(server.url(images.pick(random)), views[v], true);
+            }
+            for (int f = 0; f < mFramesPerPage; f++) {
+                pumpFrame();
+            }
+        }
+        boolean drained = drain(recorder, server);
+        long elapsedNanos = System.nanoTime() - start;
+        heapSampler.interrupt();
+        heapSampler.join();
+        loader.setMetricsListener(null);
+
+        return buildReport(name, recorder, new ServerCounts(server).minus(serverBefore),
+                formatCacheStats(cacheBefore, snapshot(loader.getCacheStats())), heapSampler.getPeak(),
+                elapsedNanos, drained);
+    }
+
+    /**
+     * 模拟一帧：等待一帧的时间，然后执行主线程中到期的消息和Choreographer回调
+     */
+    private static void pumpFrame() throws InterruptedException {
+        Thread.sleep(FRAME_MILLIS);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    /**
+     * 翻完所有的屏之后继续跑主线程，直到剩下的请求都完成
+     *
+     * @return 超时时返回false
+     */
+    private static boolean drain(MetricsRecorder recorder, ImageServer server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        int lastCount = -1;
+        long lastChange = System.currentTimeMillis();
+        while (System.currentTimeMillis() < deadline) {
+            pumpFrame();
+            int count = recorder.size();
+            long now = System.currentTimeMillis();
+            if (count != lastCount || server.getActiveRequests() > 0) {
+                lastCount = count;
+                lastChange = now;
+            } else if (now - lastChange >= IDLE_MILLIS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String buildReport(String phase, MetricsRecorder recorder, ServerCounts server, String cacheStats,
+            long peakHeap, long elapsedNanos, boolean drained) {
+        List<RequestMetrics> all = recorder.snapshot();
+        List<RequestMetrics> completed = new ArrayList<>(all.size());
+        Map<RequestMetrics.Source, Integer> sources =
+                new EnumMap<RequestMetrics.Source, Integer>(RequestMetrics.Source.class);
+        int failures = 0;
+        int canceledTasks = 0;
+        int decodes = 0;
+        int delivered = 0;
+        int canceled = 0;
+        int coalesced = 0;
+        int repeated = 0;
+        long bytesDownloaded = 0;
+        for (RequestMetrics metrics : all) {
+            // 每次loadImage只属于一个任务（内存缓存命中是只有一个imageView的任务），最后显示了或者被取消了；
+            // 同一个imageView重复加载正在加载的图片时直接并入原来的任务，也算作合并
+            int views = metrics.getDeliveredViews() + metrics.getCanceledViews();
+            delivered += metrics.getDeliveredViews();
+            canceled += metrics.getCanceledViews();
+            coalesced += Math.max(0, views - 1) + metrics.getRepeatedLoads();
+            repeated += metrics.getRepeatedLoads();
+            bytesDownloaded += metrics.getBytesDownloaded();
+            if (metrics.isCanceled()) {
+                canceledTasks++;
+                continue;
+            }
+            completed.add(metrics);
+            if (!metrics.isSuccess()) {
+                failures++;
+            }
+            RequestMetrics.Source source = metrics.getSource();
+            if (source != null) {
+                Integer count = sources.get(source);
+                sources.put(source, count == null ? 1 : count + 1);
+            }
+            if (metrics.isSuccess() && source != null && source != RequestMetrics.Source.MEMORY) {
+                decodes++;  // 内存缓存命中之外的成功结果都经过了一次解码（或者缩小）
+            }
+        }
+        long[] totals = new long[completed.size()];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = completed.get(i).getTotalNanos();
+        }
+        Arrays.sort(totals);
+        double seconds = elapsedNanos / 1e9;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("[").append(phase).append("] drained=").append(drained).append('\n');
+        sb.append(String.format(Locale.US, "elapsed=%.2fs throughput=%.1f loads/s completed=%.1f/s%n",
+                seconds, mRequests / seconds, completed.size() / seconds));
+        // 任务：完成（包括失败）或者在完成之前被取消；loadImage：显示、取消，其中合并到已有任务上的单独列出，
+        // unaccounted是没有归到任何任务的loadImage，应该为0
+        sb.append("tasks completed=").append(completed.size()).append(" failures=").append(failures)
+                .append(" canceled=").append(canceledTasks).append('\n');
+        sb.append("loads delivered=").append(delivered).append(" canceled=").append(canceled)
+                .append(" coalesced=").append(coalesced)
+                .append(" unaccounted=").append(mRequests - delivered - canceled - repeated).append('\n');
+        sb.append(String.format(Locale.US, "timeToDisplay p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms%n",
+                percentile(totals, 0.5), percentile(totals, 0.9), percentile(totals, 0.99),
+                percentile(totals, 1.0)));
+        sb.append("sources=").append(sources).append('\n');
+        sb.append("decodes=").append(decodes).append('\n');
+        sb.append("bytesDownloaded=").append(bytesDownloaded).append(" bytesServed=").append(server.bytesServed)
+                .append(" httpRequests=").append(server.requests)
+                .append(" notModified=").append(server.notModified)
+                .append(" connections=").append(server.connections).append('\n');
+        sb.append("peakHeap=").append(peakHeap / 1024).append("K").append('\n');
+        sb.append(cacheStats).append('\n');
+        return sb.toString();
+    }
+
+    private static int[][] snapshot(CacheStats stats) {
+        int[][] counts = new int[3][CacheStats.TIER_DISK + 1];
+        for (int tier = 0; tier <= CacheStats.TIER_DISK; tier++) {
+            counts[0][tier] = stats.hitCount(tier);
+            counts[1][tier] = stats.missCount(tier);
+            counts[2][tier] = stats.staleCount(tier);
+        }
+        return counts;
+    }
+
+    /**
+     * 两次快照之间各级缓存的命中：命中/访问（命中率，过期）
+     */
+    private static String formatCacheStats(int[][] before, int[][] after) {
+        String[] names = {"memory", "encoded", "disk"};
+        StringBuilder sb = new StringBuilder("cache");
+        for (int tier = 0; tier <= CacheStats.TIER_DISK; tier++) {
+            int hits = after[0][tier] - before[0][tier];
+            int misses = after[1][tier] - before[1][tier];
+            int stale = after[2][tier] - before[2][tier];
+            int accesses = hits + misses + stale;
+            sb.append(' ').append(names[tier]).append('=').append(hits).append('/').append(accesses)
+                    .append(String.format(Locale.US, "(%d%%,stale=%d)",
+                            accesses > 0 ? (int) (100f * hits / accesses) : 0, stale));
+        }
+        return sb.toString();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static void writeReport(String report) throws IOException {
+        File file = new File("build/reports/stress/report.txt");
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(report);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 服务器计数的快照，两次相减得到一遍的增量
+     */
+    private static class ServerCounts {
+        final long requests;
+        final long notModified;
+        final long bytesServed;
+        final long connections;
+
+        ServerCounts(ImageServer server) {
+            this(server.getRequestCount(), server.getNotModifiedCount(), server.getBytesServed(),
+                    server.getConnectionCount());
+        }
+
+        ServerCounts(long requests, long notModified, long bytesServed, long connections) {
+            this.requests = requests;
+            this.notModified = notModified;
+            this.bytesServed = bytesServed;
+            this.connections = connections;
+        }
+
+        ServerCounts minus(ServerCounts before) {
+            return new ServerCounts(requests - before.requests, notModified - before.notModified,
+                    bytesServed - before.bytesServed, connections - before.connections);
+        }
+    }
+
+    /**
+     * 在主线程中收集每个请求的RequestMetrics
+     */
+    private static class MetricsRecorder implements MyImageLoader.MetricsListener {
+        private final List<RequestMetrics> mMetrics = new ArrayList<>();
+
+        @Override
+        public synchronized void onRequestMetrics(RequestMetrics metrics) {
+            mMetrics.add(metrics);
+        }
+
+        synchronized int size() {
+            return mMetrics.size();
+        }
+
+        synchronized List<RequestMetrics> snapshot() {
+            return new ArrayList<>(mMetrics);
+        }
+    }
+
+    /**
+     * 每10ms记录一次已使用的堆内存，取最大值
+     */
+    private static class HeapSampler extends Thread {
+        private volatile long mPeak;
+
+        HeapSampler() {
+            super("stress-heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                long used = runtime.totalMemory() - runtime.freeMemory();
+                if (used > mPeak) {
+                    mPeak = used;
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long getPeak() {
+            return mPeak;
+        }
+    }
+}